@@ -0,0 +1,170 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides at accept time whether a connection gets in, before the engine spends a handler, an
+// outbound queue or threads on it. Connections are capped in total, per source address and
+// while still at the login prompt, and new ones are turned away while the engine is lagging.
+// A refused client gets one "server busy" line and is closed, so a connection flood costs an
+// accept and a write each and logged-in users keep their latency. Each cap is off at zero.
+class AdmissionControl {
+    private static final long PROBE_INTERVAL_MILLIS = 100;
+    private static final int DISCARD_BUFFER_SIZE = 1024;
+
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final int maxPreAuth;
+    private final long maxLagNanos;
+    private final byte[] busy;
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger preAuth = new AtomicInteger();
+    private final Map<String, Integer> perAddress = new ConcurrentHashMap<>();
+    // Written by the probe and by whichever thread runs it; see start.
+    private volatile long lagNanos;
+    private volatile long probeSentNanos;
+
+    AdmissionControl(int maxConnections, int maxPerAddress, int maxPreAuth, long maxLagNanos, int retryAfterSeconds) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.maxPreAuth = maxPreAuth;
+        this.maxLagNanos = maxLagNanos;
+        this.busy = (ChatServer.BUSY + retryAfterSeconds + " seconds.\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Measures the engine's lag every PROBE_INTERVAL_MILLIS by timing how long a no-op takes
+    // to run where connection events run. A probe still waiting counts as lag too, so a stuck
+    // engine is noticed before the probe comes back.
+    void start(ServerEngine engine) {
+        if (maxLagNanos == 0) return;
+        ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("admission-probe").daemon().factory());
+        prober.scheduleWithFixedDelay(() -> probe(engine), PROBE_INTERVAL_MILLIS, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(ServerEngine engine) {
+        if (probeSentNanos != 0) return;
+        long sent = System.nanoTime();
+        probeSentNanos = sent;
+        try {
+            engine.probe(() -> {
+                lagNanos = System.nanoTime() - sent;
+                probeSentNanos = 0;
+            });
+        } catch (RejectedExecutionException e) {
+            // The engine is shutting down
+            probeSentNanos = 0;
+        }
+    }
+
+    long getLagNanos() {
+        long sent = probeSentNanos;
+        return sent == 0 ? lagNanos : Math.max(lagNanos, System.nanoTime() - sent);
+    }
+
+    int getPreAuth() {
+        return preAuth.get();
+    }
+
+    // Called by the engine's accept loop for each new socket, before anything else is done
+    // with it. Returns false if the socket was refused, in which case it is already closed.
+    boolean admit(SocketChannel channel) {
+        ServerMetrics.Counter refusal = acquire(addressOf(channel));
+        if (refusal == null) return true;
+        refusal.increment();
+        refuse(channel);
+        return false;
+    }
+
+    // The connection has logged in or resumed a session, so it no longer counts against
+    // the pre-auth cap.
+    void loggedIn() {
+        preAuth.decrementAndGet();
+    }
+
+    // Once for every admitted connection, when it closes. address is the one the
+    // Connection reports.
+    void release(String address, boolean loggingIn) {
+        open.decrementAndGet();
+        if (loggingIn) preAuth.decrementAndGet();
+        perAddress.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    // Returns the counter for the reason the connection was refused, or null once it has
+    // been counted in.
+    private ServerMetrics.Counter acquire(InetAddress address) {
+        if (maxLagNanos > 0 && getLagNanos() > maxLagNanos) {
+            return ServerMetrics.Counter.ADMISSION_OVERLOADED;
+        }
+        if (!tryIncrement(open, maxConnections)) {
+            return ServerMetrics.Counter.ADMISSION_FULL;
+        }
+        if (!tryIncrement(preAuth, maxPreAuth)) {
+            open.decrementAndGet();
+            return ServerMetrics.Counter.ADMISSION_PRE_AUTH;
+        }
+        // Loopback is left out: the load generator and a local proxy connect from there.
+        if (maxPerAddress > 0 && address != null && !address.isLoopbackAddress()) {
+            boolean[] admitted = {false};
+            perAddress.compute(address.getHostAddress(), (key, count) -> {
+                int current = count == null ? 0 : count;
+                if (current >= maxPerAddress) return count;
+                admitted[0] = true;
+                return current + 1;
+            });
+            if (!admitted[0]) {
+                open.decrementAndGet();
+                preAuth.decrementAndGet();
+                return ServerMetrics.Counter.ADMISSION_ADDRESS;
+            }
+        }
+        return null;
+    }
+
+    private static boolean tryIncrement(AtomicInteger count, int max) {
+        while (true) {
+            int current = count.get();
+            if (max > 0 && current >= max) return false;
+            if (count.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    private static InetAddress addressOf(SocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } catch (IOException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    // Clients send their handshake straight after connecting. Reading what has already
+    // arrived before closing keeps the close from turning into a reset, which could
+    // discard the answer before the client reads it.
+    private void refuse(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap(busy));
+            channel.shutdownOutput();
+            channel.read(ByteBuffer.allocate(DISCARD_BUFFER_SIZE));
+        } catch (IOException ignored) {
+            // Closing anyway
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resources: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package phantomchat;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs password hashing and credential writes off the connection threads. The queue is
+// bounded and full means reject, so a login storm gets fast "busy" answers instead of
+// piling up work that competes with message delivery.
+class Authenticator {
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+
+    Authenticator(int threads, int queueCapacity) {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                Thread.ofPlatform().name("auth-", 0).daemon().factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.prestartAllCoreThreads();
+    }
+
+    // Throws RejectedExecutionException when the queue is full.
+    <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        return result;
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+}
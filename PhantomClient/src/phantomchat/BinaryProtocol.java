@@ -0,0 +1,148 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+
+// Frame: int length | byte opcode | int channelId | long sequence | UTF-8 payload,
+// where length counts everything after the length field itself.
+class BinaryProtocol implements WireProtocol {
+    static final byte[] MAGIC = {0, 'P', 'C', 'B', 1};
+
+    static final byte OP_TEXT = 1;
+    static final byte OP_MESSAGE = 2;
+    static final byte OP_CHANNEL = 3;
+
+    static final int FRAME_OVERHEAD = 1 + Integer.BYTES + Long.BYTES;
+    static final int HEADER_SIZE = Integer.BYTES + FRAME_OVERHEAD;
+    static final int SEQUENCE_OFFSET = Integer.BYTES + 1 + Integer.BYTES;
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final BitSet announcedChannels = new BitSet();
+    private long nextSequence = 1;
+
+    static ByteBuffer encodeFrame(byte opcode, int channelId, long sequence, String text) {
+        return ByteBuffer.wrap(frame(opcode, channelId, sequence, text));
+    }
+
+    static byte[] frame(byte opcode, int channelId, long sequence, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        putFrame(ByteBuffer.wrap(frame), opcode, channelId, sequence, payload);
+        return frame;
+    }
+
+    private static void putFrame(ByteBuffer frame, byte opcode, int channelId, long sequence, byte[] payload) {
+        frame.putInt(FRAME_OVERHEAD + payload.length)
+                .put(opcode)
+                .putInt(channelId)
+                .putLong(sequence)
+                .put(payload);
+    }
+
+    static String payloadText(ByteBuffer payload) {
+        return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public ByteBuffer encodeLine(String line) {
+        return encodeFrame(OP_TEXT, 0, nextSequence++, line);
+    }
+
+    // The first message on a channel is preceded by a frame naming its id.
+    @Override
+    public ByteBuffer encodeMessage(String channel, String message) {
+        return encodeMessage(channel, ChannelRegistry.idOf(channel), message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Every recipient queues the same frame; the queue writes this connection's sequence in.
+    @Override
+    public boolean encodeShared(SharedMessage message, OutboundQueue out, boolean droppable) {
+        int channelId = message.channelId();
+        if (!announcedChannels.get(channelId)) {
+            announcedChannels.set(channelId);
+            // Later frames name the channel only by id, so its announcement is never dropped.
+            if (!out.offer(encodeFrame(OP_CHANNEL, channelId, 0, message.channel), false)) return false;
+        }
+        return out.offerShared(message.binaryFrame(), nextSequence++, droppable);
+    }
+
+    private ByteBuffer encodeMessage(String channel, int channelId, byte[] payload) {
+        if (announcedChannels.get(channelId)) {
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            putFrame(frame, OP_MESSAGE, channelId, nextSequence++, payload);
+            return frame.flip();
+        }
+
+        announcedChannels.set(channelId);
+        byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frames = ByteBuffer.allocate(2 * HEADER_SIZE + name.length + payload.length);
+        putFrame(frames, OP_CHANNEL, channelId, 0, name);
+        putFrame(frames, OP_MESSAGE, channelId, nextSequence++, payload);
+        return frames.flip();
+    }
+
+    @Override
+    public ByteBuffer encodeMessages(String channel, List<String> messages) {
+        int channelId = ChannelRegistry.idOf(channel);
+        byte[][] payloads = new byte[messages.size()][];
+        int size = 0;
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = messages.get(i).getBytes(StandardCharsets.UTF_8);
+            size += HEADER_SIZE + payloads[i].length;
+        }
+        byte[] name = null;
+        if (!announcedChannels.get(channelId)) {
+            announcedChannels.set(channelId);
+            name = channel.getBytes(StandardCharsets.UTF_8);
+            size += HEADER_SIZE + name.length;
+        }
+
+        ByteBuffer frames = ByteBuffer.allocate(size);
+        if (name != null) {
+            putFrame(frames, OP_CHANNEL, channelId, 0, name);
+        }
+        for (byte[] payload : payloads) {
+            putFrame(frames, OP_MESSAGE, channelId, nextSequence++, payload);
+        }
+        return frames.flip();
+    }
+
+    @Override
+    public long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    @Override
+    public int sequenceLength(String message) {
+        return 1;
+    }
+
+    @Override
+    public void continueAfter(long sequence) {
+        nextSequence = sequence + 1;
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer, InboundListener listener) throws IOException {
+        decoder.decode(buffer, (opcode, channelId, sequence, payload) -> {
+            switch (opcode) {
+                case OP_TEXT:
+                    listener.onLine(payloadText(payload));
+                    break;
+                case OP_MESSAGE:
+                    String channel = ChannelRegistry.nameOf(channelId);
+                    if (channel == null) {
+                        throw new IOException("Unknown channel id: " + channelId);
+                    }
+                    listener.onMessage(channel, payloadText(payload));
+                    break;
+                default:
+                    throw new IOException("Unexpected opcode: " + opcode);
+            }
+        });
+    }
+}
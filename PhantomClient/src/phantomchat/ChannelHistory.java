@@ -0,0 +1,276 @@
+package phantomchat;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// One channel's messages as the chat view's list model: a window of at most MAX_PAGES pages
+// onto the server's journal, plus whatever arrives live. The view asks for older pages as the
+// user nears the top. Past MAX_PAGES, whichever end page was seen least recently is dropped,
+// so a client left open for days holds no more than it did after the first hour. Rows carry
+// their journal sequence, or 0 for lines the server never journaled, and pages are fetched
+// relative to those. Only touched on the EDT.
+@SuppressWarnings("serial")
+class ChannelHistory extends AbstractListModel<ChannelHistory.Row> {
+    static final int PAGE_SIZE = 100;
+    static final int MAX_PAGES = 20;
+    // A page request that has not been answered by then is sent again.
+    private static final long REQUEST_TIMEOUT_NANOS = 5_000_000_000L;
+
+    static final class Row {
+        final long sequence;
+        final String text;
+        // The view's wrapped lines and height for wrapWidth, so a row is measured once per width.
+        int wrapWidth = -1;
+        String[] lines;
+        int height;
+
+        Row(long sequence, String text) {
+            this.sequence = sequence;
+            this.text = text;
+        }
+    }
+
+    private static final class Page {
+        final List<Row> rows = new ArrayList<>(PAGE_SIZE);
+        long lastSeen;
+
+        Page(long lastSeen) {
+            this.lastSeen = lastSeen;
+        }
+
+        long minSequence() {
+            for (Row row : rows) {
+                if (row.sequence != 0) return row.sequence;
+            }
+            return 0;
+        }
+
+        long maxSequence() {
+            for (int i = rows.size() - 1; i >= 0; i--) {
+                if (rows.get(i).sequence != 0) return rows.get(i).sequence;
+            }
+            return 0;
+        }
+    }
+
+    private final List<Page> pages = new ArrayList<>();
+    private int size;
+    private long seenClock;
+    // The next older page is the one before this sequence; 0 until the server has said where
+    // the channel's history is.
+    private long oldest;
+    private boolean startReached;
+    private long olderRequestedNanos;
+    private boolean olderRequested;
+    // Every journaled message up to here has arrived in a page, so a live copy is a repeat.
+    private long pagedUpTo;
+    // Set once bottom pages have been dropped. Live rows are then held back until the pages
+    // after newest have been fetched again, and only the latest PAGE_SIZE of them are kept.
+    private boolean detached;
+    private long newest;
+    private long newerRequestedNanos;
+    private boolean newerRequested;
+    private final ArrayDeque<Row> held = new ArrayDeque<>();
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Row getElementAt(int index) {
+        for (Page page : pages) {
+            if (index < page.rows.size()) return page.rows.get(index);
+            index -= page.rows.size();
+        }
+        throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+    }
+
+    // Where the row is now, or -1 once it has been dropped.
+    int indexOf(Row row) {
+        int offset = 0;
+        for (Page page : pages) {
+            for (int i = 0; i < page.rows.size(); i++) {
+                if (page.rows.get(i) == row) return offset + i;
+            }
+            offset += page.rows.size();
+        }
+        return -1;
+    }
+
+    // A message as it arrives live.
+    void add(long sequence, String text) {
+        Row row = new Row(sequence, text);
+        if (detached) {
+            held.addLast(row);
+            if (held.size() > PAGE_SIZE) held.removeFirst();
+            return;
+        }
+        if (sequence != 0 && (sequence <= pagedUpTo || (sequence <= newest && containsRecent(sequence)))) return;
+        addLast(row);
+        evict();
+    }
+
+    void addPage(String direction, long first, List<String> messages) {
+        switch (direction) {
+            case ChatServer.PAGE_BEFORE:
+                olderRequested = false;
+                prepend(first, messages);
+                break;
+            case ChatServer.PAGE_AFTER:
+                newerRequested = false;
+                append(first, messages);
+                if (detached && messages.size() < PAGE_SIZE) {
+                    reattach();
+                }
+                break;
+            case ChatServer.PAGE_LATEST:
+                // What the server sends on joining; while detached, the pages after newest cover it.
+                if (detached) return;
+                if (oldest == 0 || first < oldest) oldest = first;
+                append(first, messages);
+                break;
+            default:
+                return;
+        }
+        evict();
+    }
+
+    // The rows from first to last are on screen.
+    void touch(int first, int last) {
+        seenClock++;
+        int offset = 0;
+        for (Page page : pages) {
+            int end = offset + page.rows.size() - 1;
+            if (end >= first && offset <= last) page.lastSeen = seenClock;
+            offset = end + 1;
+        }
+    }
+
+    // The sequence to fetch the page before, or -1 if there is nothing older to fetch or a
+    // request is already on its way. The caller sends the request.
+    long olderToFetch() {
+        if (startReached || oldest <= 1 || isPending(olderRequested, olderRequestedNanos)) return -1;
+        olderRequested = true;
+        olderRequestedNanos = System.nanoTime();
+        return oldest;
+    }
+
+    // Likewise for the page after the rows still held, once bottom pages have been dropped.
+    long newerToFetch() {
+        if (!detached || isPending(newerRequested, newerRequestedNanos)) return -1;
+        if (newest == 0) {
+            // Nothing journaled was dropped, so there is nothing to fetch back.
+            reattach();
+            return -1;
+        }
+        newerRequested = true;
+        newerRequestedNanos = System.nanoTime();
+        return newest;
+    }
+
+    private static boolean isPending(boolean requested, long requestedNanos) {
+        return requested && System.nanoTime() - requestedNanos < REQUEST_TIMEOUT_NANOS;
+    }
+
+    private void prepend(long first, List<String> messages) {
+        List<Row> rows = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            long sequence = first + i;
+            if (oldest == 0 || sequence < oldest) rows.add(new Row(sequence, messages.get(i)));
+        }
+        if (rows.isEmpty()) {
+            if (messages.isEmpty()) startReached = true;
+            return;
+        }
+        oldest = rows.get(0).sequence;
+        // Fetched because the user is looking at the top, so they count as seen with it.
+        long seen = pages.isEmpty() ? seenClock : pages.get(0).lastSeen;
+        int added = 0;
+        for (int start = 0; start < rows.size(); start += PAGE_SIZE) {
+            Page page = new Page(seen);
+            page.rows.addAll(rows.subList(start, Math.min(rows.size(), start + PAGE_SIZE)));
+            pages.add(added++, page);
+        }
+        size += rows.size();
+        fireIntervalAdded(this, 0, rows.size() - 1);
+    }
+
+    private void append(long first, List<String> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            long sequence = first + i;
+            if (sequence > pagedUpTo && !containsRecent(sequence)) {
+                addLast(new Row(sequence, messages.get(i)));
+            }
+        }
+        if (!messages.isEmpty()) {
+            pagedUpTo = Math.max(pagedUpTo, first + messages.size() - 1);
+        }
+    }
+
+    private void addLast(Row row) {
+        Page last = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (last == null || last.rows.size() == PAGE_SIZE) {
+            // Seen as recently as the rows before it, so it stays if the user is at the bottom.
+            last = new Page(last == null ? seenClock : last.lastSeen);
+            pages.add(last);
+        }
+        last.rows.add(row);
+        size++;
+        if (row.sequence != 0) {
+            newest = Math.max(newest, row.sequence);
+            if (oldest == 0) oldest = row.sequence;
+        }
+        fireIntervalAdded(this, size - 1, size - 1);
+    }
+
+    // Live messages can arrive slightly out of journal order, so a page may overlap the
+    // newest rows.
+    private boolean containsRecent(long sequence) {
+        for (int p = pages.size() - 1; p >= Math.max(0, pages.size() - 2); p--) {
+            for (Row row : pages.get(p).rows) {
+                if (row.sequence == sequence) return true;
+            }
+        }
+        return false;
+    }
+
+    private void reattach() {
+        detached = false;
+        newerRequested = false;
+        for (Row row : held) {
+            if (row.sequence == 0 || (row.sequence > pagedUpTo && !containsRecent(row.sequence))) {
+                addLast(row);
+            }
+        }
+        held.clear();
+    }
+
+    // Only end pages go, so what is held stays one contiguous stretch of the channel.
+    private void evict() {
+        while (pages.size() > MAX_PAGES) {
+            Page top = pages.get(0);
+            Page bottom = pages.get(pages.size() - 1);
+            if (top.lastSeen <= bottom.lastSeen) {
+                pages.remove(0);
+                size -= top.rows.size();
+                fireIntervalRemoved(this, 0, top.rows.size() - 1);
+                startReached = false;
+                long max = top.maxSequence();
+                if (max != 0) oldest = max + 1;
+            } else {
+                pages.remove(pages.size() - 1);
+                size -= bottom.rows.size();
+                fireIntervalRemoved(this, size, size + bottom.rows.size() - 1);
+                detached = true;
+                long min = bottom.minSequence();
+                if (min != 0) {
+                    newest = min - 1;
+                    pagedUpTo = Math.min(pagedUpTo, newest);
+                }
+            }
+        }
+    }
+}
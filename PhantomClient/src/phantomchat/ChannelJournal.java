@@ -0,0 +1,358 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// One channel's history: a directory of fixed-size, memory-mapped segment files named
+// after the first sequence number they hold. Records are int length | long sequence |
+// long timestamp | UTF-8 text, and a zero length marks the end of the written data.
+// Every INDEX_INTERVAL bytes a (sequence, position) pair is added to the segment's sparse
+// index, which is saved next to the segment as <base>.idx when the segment is sealed.
+class ChannelJournal {
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSequence = 1;
+    private boolean closed;
+
+    private static class Segment {
+        final long baseSequence;
+        final Path path;
+        long lastSequence;
+        long lastTimestamp;
+        int end;
+        long[] indexSequences = new long[16];
+        int[] indexPositions = new int[16];
+        int indexSize;
+        int lastIndexedPosition = -INDEX_INTERVAL;
+        MappedByteBuffer writable;
+        // Once sealed, mapped read-only on first read and kept until the segment is deleted.
+        MappedByteBuffer readable;
+
+        Segment(long baseSequence, Path path) {
+            this.baseSequence = baseSequence;
+            this.path = path;
+            this.lastSequence = baseSequence - 1;
+        }
+
+        void addIndexEntry(long sequence, int position) {
+            if (indexSize == indexSequences.length) {
+                indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexSequences[indexSize] = sequence;
+            indexPositions[indexSize++] = position;
+            lastIndexedPosition = position;
+        }
+
+        // Position of the last indexed record at or before the sequence.
+        int floorPosition(long sequence) {
+            int low = 0, high = indexSize - 1, position = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexSequences[mid] <= sequence) {
+                    position = indexPositions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return position;
+        }
+    }
+
+    private ChannelJournal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    // Whether the directory holds a journal, without creating one.
+    static boolean exists(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return false;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            return files.iterator().hasNext();
+        }
+    }
+
+    static ChannelJournal open(Path directory, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        ChannelJournal journal = new ChannelJournal(directory, segmentSize);
+
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        bases.sort(null);
+
+        for (int i = 0; i < bases.size(); i++) {
+            Segment segment = new Segment(bases.get(i), journal.segmentPath(bases.get(i), LOG_SUFFIX));
+            boolean active = i == bases.size() - 1;
+            if (active || !journal.loadIndex(segment)) {
+                journal.scan(segment);
+            }
+            journal.segments.add(segment);
+            journal.nextSequence = segment.lastSequence + 1;
+        }
+
+        if (journal.segments.isEmpty()) {
+            journal.segments.add(journal.createSegment(1));
+        } else {
+            Segment active = journal.segments.get(journal.segments.size() - 1);
+            active.writable = journal.mapWritable(active.path);
+            // Clear whatever a crash may have left after the last intact record.
+            for (int i = active.end; i < active.writable.capacity(); i++) {
+                if (active.writable.get(i) != 0) active.writable.put(i, (byte) 0);
+            }
+        }
+        return journal;
+    }
+
+    synchronized long append(long timestamp, String text) throws IOException {
+        ensureOpen();
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER + payload.length;
+        if (recordSize + Integer.BYTES > segmentSize) {
+            throw new IOException("Message of " + payload.length + " bytes does not fit in a journal segment");
+        }
+
+        Segment active = segments.get(segments.size() - 1);
+        if (active.end + recordSize + Integer.BYTES > segmentSize) {
+            seal(active);
+            active = createSegment(nextSequence);
+            segments.add(active);
+        }
+
+        long sequence = nextSequence++;
+        int position = active.end;
+        MappedByteBuffer buffer = active.writable;
+        buffer.putLong(position + 4, sequence);
+        buffer.putLong(position + 12, timestamp);
+        buffer.put(position + RECORD_HEADER, payload);
+        // The length goes in last, so a torn record never looks complete.
+        buffer.putInt(position, recordSize - Integer.BYTES);
+
+        if (position - active.lastIndexedPosition >= INDEX_INTERVAL) {
+            active.addIndexEntry(sequence, position);
+        }
+        active.end += recordSize;
+        active.lastSequence = sequence;
+        active.lastTimestamp = timestamp;
+        return sequence;
+    }
+
+    synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    synchronized long firstSequence() {
+        return segments.get(0).baseSequence;
+    }
+
+    // Reads up to maxCount records starting at fromSequence (or the oldest retained one).
+    synchronized List<MessageJournal.Entry> read(long fromSequence, int maxCount) throws IOException {
+        ensureOpen();
+        List<MessageJournal.Entry> entries = new ArrayList<>(Math.min(maxCount, 256));
+        int first = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).baseSequence <= fromSequence) first = i;
+        }
+
+        for (int i = first; i < segments.size() && entries.size() < maxCount; i++) {
+            Segment segment = segments.get(i);
+            if (segment.lastSequence < fromSequence) continue;
+            ByteBuffer buffer = buffer(segment);
+            int position = segment.floorPosition(fromSequence);
+            while (position < segment.end && entries.size() < maxCount) {
+                int length = buffer.getInt(position);
+                long sequence = buffer.getLong(position + 4);
+                if (sequence >= fromSequence) {
+                    entries.add(entry(buffer, position, length, sequence));
+                }
+                position += Integer.BYTES + length;
+            }
+        }
+        return entries;
+    }
+
+    // Reads the records for the given ascending sequences, leaving out those retention has
+    // deleted. Each segment is scanned forward once, so hits close together share a pass.
+    synchronized List<MessageJournal.Entry> read(long[] sequences) throws IOException {
+        ensureOpen();
+        List<MessageJournal.Entry> entries = new ArrayList<>(sequences.length);
+        int index = 0;
+        Segment segment = null;
+        ByteBuffer buffer = null;
+        int position = 0;
+        for (long wanted : sequences) {
+            while (index < segments.size() && segments.get(index).lastSequence < wanted) index++;
+            if (index == segments.size()) break;
+            if (segments.get(index).baseSequence > wanted) continue;
+            if (segment != segments.get(index)) {
+                segment = segments.get(index);
+                buffer = buffer(segment);
+                position = 0;
+            }
+            position = Math.max(position, segment.floorPosition(wanted));
+            while (position < segment.end) {
+                int length = buffer.getInt(position);
+                long sequence = buffer.getLong(position + 4);
+                if (sequence > wanted) break;
+                position += Integer.BYTES + length;
+                if (sequence == wanted) {
+                    entries.add(entry(buffer, position - Integer.BYTES - length, length, sequence));
+                    break;
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Deletes whole sealed segments, oldest first, while the journal is over its size
+    // budget or the segment's newest message is older than minTimestamp.
+    synchronized void enforceRetention(long maxBytes, long minTimestamp) throws IOException {
+        long totalBytes = (long) segments.size() * segmentSize;
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (totalBytes <= maxBytes && oldest.lastTimestamp >= minTimestamp) break;
+            oldest.readable = null;
+            Files.deleteIfExists(oldest.path);
+            Files.deleteIfExists(segmentPath(oldest.baseSequence, INDEX_SUFFIX));
+            segments.remove(0);
+            totalBytes -= segmentSize;
+        }
+    }
+
+    synchronized void flush() {
+        if (closed) return;
+        segments.get(segments.size() - 1).writable.force();
+    }
+
+    // Flushes the journal and drops its mappings, which are unmapped once collected. Opening
+    // the directory again picks up where it left off.
+    synchronized void close() {
+        if (closed) return;
+        flush();
+        for (Segment segment : segments) {
+            segment.writable = null;
+            segment.readable = null;
+        }
+        closed = true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Journal " + directory + " is closed");
+    }
+
+    private static ByteBuffer buffer(Segment segment) throws IOException {
+        if (segment.writable != null) return segment.writable;
+        if (segment.readable == null) segment.readable = mapReadOnly(segment.path);
+        return segment.readable;
+    }
+
+    private static MessageJournal.Entry entry(ByteBuffer buffer, int position, int length, long sequence) {
+        long timestamp = buffer.getLong(position + 12);
+        byte[] payload = new byte[length - (RECORD_HEADER - Integer.BYTES)];
+        buffer.get(position + RECORD_HEADER, payload);
+        return new MessageJournal.Entry(sequence, timestamp, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private Segment createSegment(long baseSequence) throws IOException {
+        Segment segment = new Segment(baseSequence, segmentPath(baseSequence, LOG_SUFFIX));
+        segment.writable = mapWritable(segment.path);
+        return segment;
+    }
+
+    private void seal(Segment segment) throws IOException {
+        segment.writable.force();
+        segment.writable = null;
+
+        ByteBuffer index = ByteBuffer.allocate(Long.BYTES * 2 + Integer.BYTES * 2 + segment.indexSize * (Long.BYTES + Integer.BYTES));
+        index.putLong(segment.lastSequence).putLong(segment.lastTimestamp).putInt(segment.end).putInt(segment.indexSize);
+        for (int i = 0; i < segment.indexSize; i++) {
+            index.putLong(segment.indexSequences[i]).putInt(segment.indexPositions[i]);
+        }
+        Path temp = segmentPath(segment.baseSequence, INDEX_SUFFIX + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            index.flip();
+            while (index.hasRemaining()) channel.write(index);
+            channel.force(true);
+        }
+        Files.move(temp, segmentPath(segment.baseSequence, INDEX_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean loadIndex(Segment segment) {
+        Path path = segmentPath(segment.baseSequence, INDEX_SUFFIX);
+        try {
+            if (!Files.exists(path)) return false;
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(path));
+            segment.lastSequence = index.getLong();
+            segment.lastTimestamp = index.getLong();
+            segment.end = index.getInt();
+            int size = index.getInt();
+            for (int i = 0; i < size; i++) {
+                segment.addIndexEntry(index.getLong(), index.getInt());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error loading journal index " + path + ": " + e.getMessage());
+            segment.indexSize = 0;
+            return false;
+        }
+    }
+
+    // Rebuilds a segment's sparse index and finds its end, stopping at the first record
+    // that is incomplete or out of sequence.
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer buffer = mapReadOnly(segment.path);
+        int position = 0;
+        long expected = segment.baseSequence;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEADER - Integer.BYTES || position + Integer.BYTES + length > buffer.capacity()) break;
+            long sequence = buffer.getLong(position + 4);
+            if (sequence != expected) break;
+            if (position - segment.lastIndexedPosition >= INDEX_INTERVAL) {
+                segment.addIndexEntry(sequence, position);
+            }
+            segment.lastSequence = sequence;
+            segment.lastTimestamp = buffer.getLong(position + 12);
+            position += Integer.BYTES + length;
+            expected++;
+        }
+        segment.end = position;
+    }
+
+    private Path segmentPath(long baseSequence, String suffix) {
+        return directory.resolve(String.format("%020d", baseSequence) + suffix);
+    }
+
+    private MappedByteBuffer mapWritable(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private static MappedByteBuffer mapReadOnly(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
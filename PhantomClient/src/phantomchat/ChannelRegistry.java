@@ -0,0 +1,82 @@
+package phantomchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ChannelRegistry {
+    static final String DEFAULT_CHANNEL = "#global";
+    private static final int MAX_CHANNEL_LENGTH = 32;
+
+    // Stable numeric ids for the binary protocol; ids are never reused.
+    private static final ConcurrentHashMap<String, Integer> channelIds = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, String> channelNames = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextChannelId = new AtomicInteger(1);
+
+    private final ConcurrentHashMap<String, Set<Connection>> subscribers = new ConcurrentHashMap<>();
+
+    static int idOf(String channel) {
+        return channelIds.computeIfAbsent(channel, name -> {
+            int id = nextChannelId.getAndIncrement();
+            channelNames.put(id, name);
+            return id;
+        });
+    }
+
+    static String nameOf(int channelId) {
+        return channelNames.get(channelId);
+    }
+
+    static boolean isValidName(String channel) {
+        return channel != null &&
+                channel.length() >= 2 &&
+                channel.length() <= MAX_CHANNEL_LENGTH &&
+                channel.matches("^#[a-zA-Z0-9_-]+$");
+    }
+
+    // Adds inside compute, like part removes, so a part emptying the channel at the same time
+    // cannot leave the joiner in a set that is no longer in the index.
+    boolean join(String channel, Connection connection) {
+        boolean[] added = new boolean[1];
+        subscribers.compute(channel, (name, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            added[0] = members.add(connection);
+            return members;
+        });
+        return added[0];
+    }
+
+    // Drops the channel from the index once its last member leaves.
+    boolean part(String channel, Connection connection) {
+        boolean[] removed = new boolean[1];
+        subscribers.computeIfPresent(channel, (name, members) -> {
+            removed[0] = members.remove(connection);
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    // Every connection's channels, in one pass over the index.
+    Map<Connection, List<String>> memberships() {
+        Map<Connection, List<String>> memberships = new HashMap<>();
+        subscribers.forEach((channel, members) -> {
+            for (Connection member : members) {
+                memberships.computeIfAbsent(member, connection -> new ArrayList<>()).add(channel);
+            }
+        });
+        return memberships;
+    }
+
+    Set<Connection> members(String channel) {
+        return subscribers.getOrDefault(channel, Collections.emptySet());
+    }
+
+    int channelCount() {
+        return subscribers.size();
+    }
+}
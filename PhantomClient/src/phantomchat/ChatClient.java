@@ -1,17 +1,20 @@
+package phantomchat;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.net.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import javax.swing.border.*;
 
 public class ChatClient {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 4670;
-    private static Socket socket;
-    private static BufferedReader in;
-    private static PrintWriter out;
     private static String username;
     private static String currentChannel = "#global";  // Default channel is #global
 
@@ -23,17 +26,30 @@ public class ChatClient {
     private static final Color BORDER_COLOR = new Color(70, 70, 70);
     private static final Color INPUT_BG = new Color(50, 50, 50);
 
+    private static final int FRAME_MILLIS = 16;
+    // The next page is asked for once the view is this many rows from the end of what is held.
+    private static final int PREFETCH_ROWS = 20;
+
     private JFrame loginFrame;
     private JFrame chatFrame;
-    private JTextArea chatArea;
+    private MessageList chatList;
+    private JScrollPane chatScroll;
     private JTextField messageField;
     private JTextField usernameField;
     private JPasswordField passwordField;
+    private JButton submitButton;
+    private ClientConnection connection;
     private JList<String> channelList;
     private DefaultListModel<String> channelModel;
-    private Map<String, StringBuilder> channelMessages;
+    private Map<String, ChannelHistory> channelMessages;
     private Set<String> onlineUsers;
 
+    // Messages read off the socket wait here until the EDT drains them in one batch per frame
+    private final Queue<Incoming> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private javax.swing.Timer renderTimer;
+    private long lastFlushNanos;
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             new ChatClient().createLoginUI();
@@ -92,7 +108,7 @@ public class ChatClient {
         confirmPanel.setVisible(false);
         mainPanel.add(confirmPanel);
 
-        JButton submitButton = createStyledButton("Login");
+        submitButton = createStyledButton("Login");
         JPanel buttonPanel = new JPanel();
         buttonPanel.setBackground(DARK_BG);
         buttonPanel.add(submitButton);
@@ -183,52 +199,43 @@ public class ChatClient {
     }
 
     private void attemptLogin(String username, String password) {
-        try {
-            connectToServer();
-            out.println("1"); // Choice for login
-            out.println(username);
-            out.println(password);
-            handleAuthenticationResponse();
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(loginFrame, "Error connecting to server: " + ex.getMessage());
-        }
+        enterChat(username, connection -> connection.login(username, password));
     }
 
     private void attemptRegistration(String username, String password) {
-        try {
-            connectToServer();
-            out.println("2"); // Choice for registration
-            String response = in.readLine();
-            out.println(username);
-            response = in.readLine();
-            out.println(password);
-            response = in.readLine();
-            out.println(password);
-            handleAuthenticationResponse();
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(loginFrame, "Error connecting to server: " + ex.getMessage());
-        }
+        enterChat(username, connection -> connection.register(username, password));
     }
 
-    private void connectToServer() throws IOException {
-        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
-    }
+    // Logging in runs on the connection's own thread; only the outcome comes back to the EDT
+    private void enterChat(String name, Function<ClientConnection, CompletableFuture<Void>> authenticate) {
+        submitButton.setEnabled(false);
+        ClientConnection next = new ClientConnection(SERVER_ADDRESS, SERVER_PORT, new ClientConnection.Listener() {
+            @Override
+            public void onMessage(String channel, long sequence, String message) {
+                enqueueMessage(new Incoming(channel, null, sequence, List.of(message)));
+            }
 
-    private void handleAuthenticationResponse() throws IOException {
-        String response;
-        while ((response = in.readLine()) != null) {
-            if (response.contains("successful")) {
-                this.username = usernameField.getText().trim();
-                createChatUI();
-                loginFrame.dispose();
-                break;
-            } else if (response.startsWith("Error") || response.contains("wrong")) {
-                showErrorMessage(response);
-                break;
+            @Override
+            public void onPage(String channel, String direction, long first, List<String> messages) {
+                enqueueMessage(new Incoming(channel, direction, first, messages));
             }
-        }
+
+            @Override
+            public void onNotice(String notice) {
+                enqueueMessage(new Incoming("#global", null, 0, List.of("*** " + notice)));
+            }
+        });
+        authenticate.apply(next).whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                submitButton.setEnabled(true);
+                showErrorMessage(error.getMessage());
+                return;
+            }
+            connection = next;
+            username = name;
+            createChatUI();
+            loginFrame.dispose();
+        }));
     }
 
     private void createChatUI() {
@@ -236,13 +243,16 @@ public class ChatClient {
         chatFrame.setSize(600, 400);
         chatFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setBackground(DARKER_BG);
-        chatArea.setForeground(TEXT_COLOR);
-        JScrollPane scrollPane = new JScrollPane(chatArea);
-        scrollPane.setBorder(BorderFactory.createLineBorder(BORDER_COLOR));
-        chatFrame.add(scrollPane, BorderLayout.CENTER);
+        chatList = new MessageList();
+        chatList.setBackground(DARKER_BG);
+        chatList.setForeground(TEXT_COLOR);
+        chatScroll = new JScrollPane(chatList);
+        chatScroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        chatScroll.setBorder(BorderFactory.createLineBorder(BORDER_COLOR));
+        chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting()) fetchPages();
+        });
+        chatFrame.add(chatScroll, BorderLayout.CENTER);
 
         JPanel bottomPanel = new JPanel();
         bottomPanel.setLayout(new BorderLayout());
@@ -263,40 +273,120 @@ public class ChatClient {
         channelList.setBackground(DARKER_BG);
         channelList.setForeground(TEXT_COLOR);
         channelList.setBorder(BorderFactory.createLineBorder(BORDER_COLOR));
+        channelList.setSelectedValue(currentChannel, false);
+        channelList.addListSelectionListener(e -> {
+            String selected = channelList.getSelectedValue();
+            if (!e.getValueIsAdjusting() && selected != null) {
+                currentChannel = selected;
+                chatList.setModel(history(selected));
+                chatList.scrollToBottom();
+                fetchPages();
+            }
+        });
         JScrollPane channelScroll = new JScrollPane(channelList);
         chatFrame.add(channelScroll, BorderLayout.WEST);
 
-        chatFrame.setVisible(true);
-
         channelMessages = new HashMap<>();
         onlineUsers = new HashSet<>();
-        startMessageListener();
+        chatList.setModel(history(currentChannel));
+
+        chatFrame.setVisible(true);
+
+        renderTimer = new javax.swing.Timer(FRAME_MILLIS, e -> flushPendingMessages());
+        renderTimer.setRepeats(false);
     }
 
     private void sendMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
-            out.println(currentChannel);  // Send current channel
-            out.println(message);
+            connection.send(currentChannel, message);
             messageField.setText("");
         }
     }
 
-    private void startMessageListener() {
-        new Thread(() -> {
-            try {
-                String message;
-                while ((message = in.readLine()) != null) {
-                    String channel = in.readLine();
-                    if (!channelMessages.containsKey(channel)) {
-                        channelMessages.put(channel, new StringBuilder());
-                    }
-                    channelMessages.get(channel).append(message).append("\n");
-                    chatArea.setText(channelMessages.get(currentChannel).toString());
+    private void enqueueMessage(Incoming incoming) {
+        pendingMessages.add(incoming);
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleFlush);
+        }
+    }
+
+    // Runs on the EDT: flush right away unless the last flush was less than a frame ago
+    private void scheduleFlush() {
+        long sinceLast = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFlushNanos);
+        if (sinceLast >= FRAME_MILLIS) {
+            flushPendingMessages();
+        } else {
+            renderTimer.setInitialDelay((int) (FRAME_MILLIS - sinceLast));
+            renderTimer.restart();
+        }
+    }
+
+    private void flushPendingMessages() {
+        lastFlushNanos = System.nanoTime();
+        // Clear the flag before draining so a message queued mid-drain schedules another flush
+        flushScheduled.set(false);
+
+        chatList.keepPosition(() -> {
+            Incoming incoming;
+            while ((incoming = pendingMessages.poll()) != null) {
+                ChannelHistory history = history(incoming.channel);
+                if (incoming.direction == null) {
+                    history.add(incoming.sequence, incoming.messages.get(0));
+                } else {
+                    history.addPage(incoming.direction, incoming.sequence, incoming.messages);
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
             }
-        }).start();
+        });
+        fetchPages();
+    }
+
+    private ChannelHistory history(String channel) {
+        ChannelHistory history = channelMessages.get(channel);
+        if (history == null) {
+            history = new ChannelHistory();
+            channelMessages.put(channel, history);
+            if (!channelModel.contains(channel)) channelModel.addElement(channel);
+        }
+        return history;
+    }
+
+    // Marks what is on screen as seen, and asks for the page beyond either end of the current
+    // channel's history once the view gets close to it.
+    private void fetchPages() {
+        ChannelHistory history = channelMessages.get(currentChannel);
+        if (history == null || history.getSize() == 0) return;
+        Rectangle visible = chatScroll.getViewport().getViewRect();
+        int first = chatList.locationToIndex(new Point(0, visible.y));
+        int last = chatList.locationToIndex(new Point(0, visible.y + visible.height - 1));
+        if (first < 0) return;
+        history.touch(first, last);
+        if (first < PREFETCH_ROWS) {
+            long before = history.olderToFetch();
+            if (before > 0) {
+                connection.requestPage(currentChannel, ChatServer.PAGE_BEFORE, before, ChannelHistory.PAGE_SIZE);
+            }
+        }
+        if (last >= history.getSize() - PREFETCH_ROWS) {
+            long after = history.newerToFetch();
+            if (after > 0) {
+                connection.requestPage(currentChannel, ChatServer.PAGE_AFTER, after, ChannelHistory.PAGE_SIZE);
+            }
+        }
+    }
+
+    // A live message (direction null) or a page, as read off the socket.
+    private static final class Incoming {
+        final String channel;
+        final String direction;
+        final long sequence;
+        final List<String> messages;
+
+        Incoming(String channel, String direction, long sequence, List<String> messages) {
+            this.channel = channel;
+            this.direction = direction;
+            this.sequence = sequence;
+            this.messages = messages;
+        }
     }
 }
@@ -0,0 +1,1212 @@
+package phantomchat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+public class ChatServer {
+    // Controls from the server (HEARTBEAT, RESUME_TOKEN, PAGE headers and a RESUME_FAILED that
+    // ends a session) come with this in place of a channel line. No channel may be named so, and
+    // every line of a chat message carries its own channel line, so nothing a user sends can
+    // arrive looking like a control.
+    static final String CONTROL_CHANNEL = "!server";
+    // Sent to a logged-in client that has gone quiet; any reply, such as HEARTBEAT_REPLY, proves it is alive.
+    static final String HEARTBEAT = "/ping";
+    static final String HEARTBEAT_REPLY = "/pong";
+    // A logged-in client is sent RESUME_TOKEN and a token. After losing its connection it may
+    // send RESUME, the token and the last message sequence it saw in place of a menu choice,
+    // and is answered RESUMED and the sequence it should count on from.
+    static final String RESUME_TOKEN = "/session";
+    static final String RESUME = "/resume";
+    static final String RESUMED = "Session resumed at ";
+    // Answers a RESUME that cannot be honoured, and also arrives as a message when the server
+    // ends a session for good; either way the client drops its token.
+    static final String RESUME_FAILED = "Resume failed";
+    private static final String LOST_REGISTRATION = "your username was registered on another server at the same time.";
+    // Sent before the login choice by clients that page through history themselves: their
+    // broadcasts then carry the journal sequence after the channel name, and history comes as
+    // a PAGE header ("/page <channel> <direction> <first sequence> <count>") followed by the
+    // messages. If any of them spans several lines, a sixth field lists each one's line count,
+    // as in "/page #global before 120 3 1,2,1"; the header says exactly how many lines follow
+    // either way.
+    static final String PAGING = "/paging";
+    static final String PAGE = "/page";
+    static final String PAGE_BEFORE = "before";
+    static final String PAGE_AFTER = "after";
+    static final String PAGE_LATEST = "latest";
+    // The only line sent to a connection AdmissionControl refuses, followed by "<n> seconds."
+    static final String BUSY = "Server busy, retry after ";
+
+    private static final Map<String, Connection> clientConnections = new ConcurrentHashMap<>();
+    private static final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // Every logged-in session while resume is enabled, by token, including dropped ones
+    // waiting for their client to come back.
+    private static final Map<String, ClientHandler> resumableSessions = new ConcurrentHashMap<>();
+    private static final Presence presence = new Presence(ChatServer::isOnline);
+    private static final ChannelRegistry channelRegistry = new ChannelRegistry();
+    private static final String USERS_FILE = "users.txt";
+    private static final int MIN_USERNAME_LENGTH = 3;
+    private static final int MIN_PASSWORD_LENGTH = 4;
+    private static final int WRITE_STATS_INTERVAL_SECONDS = 60;
+    private static final int MAX_REPLAY = 500;
+    private static final int MAX_SEARCH_RESULTS = 20;
+    private static final DateTimeFormatter SEARCH_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+    private static final int TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_BUCKETS = 512;
+    private static final int RESUME_TOKEN_BYTES = 16;
+    private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(ChatServer::createDigest);
+    private static final HexFormat HEX = HexFormat.of();
+    private static UserStore userStore;
+    private static Authenticator authenticator;
+    private static MessageJournal messageJournal;
+    private static int replayCount;
+    private static Set<String> admins;
+    private static ClusterNode cluster;
+    private static TimingWheel timers;
+    private static FloodControl floodControl;
+    private static AdmissionControl admission;
+    private static long heartbeatNanos;
+    private static long idleTimeoutNanos;
+    private static long authTimeoutNanos;
+    private static long writeStallNanos;
+    private static long timeoutCheckMillis;
+    private static long resumeMillis;
+    private static int resumeBuffer;
+
+    public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return;
+        }
+
+        System.out.println("Chat server started (" + config.getEngine().name().toLowerCase() + " engine)...");
+        try {
+            userStore = UserStore.open(USERS_FILE);
+        } catch (IOException e) {
+            System.err.println("Error loading user data: " + e.getMessage());
+            return;
+        }
+        authenticator = config.createAuthenticator();
+        messageJournal = MessageJournal.open(config);
+        replayCount = config.getReplayCount();
+        admins = config.getAdmins();
+        heartbeatNanos = config.getHeartbeatNanos();
+        idleTimeoutNanos = config.getIdleTimeoutNanos();
+        authTimeoutNanos = config.getAuthTimeoutNanos();
+        writeStallNanos = config.getWriteStallNanos();
+        timeoutCheckMillis = config.getTimeoutCheckMillis();
+        resumeMillis = config.getResumeMillis();
+        resumeBuffer = config.getResumeBuffer();
+        timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_BUCKETS, "timing-wheel");
+        floodControl = config.createFloodControl();
+        admission = config.createAdmissionControl();
+        try {
+            cluster = ClusterNode.start(config, ChatServer::localMemberships, new ClusterListener());
+        } catch (IOException e) {
+            System.err.println("Error starting cluster node: " + e.getMessage());
+            return;
+        }
+        if (config.getBatchWindowNanos() > 0) {
+            startWriteStatsReporter();
+        }
+        registerGauges();
+        ServerMetrics.startRateSampler();
+        if (config.getMetricsPort() > 0) {
+            try {
+                MetricsEndpoint.start(config.getMetricsPort());
+            } catch (IOException e) {
+                System.err.println("Error starting metrics endpoint: " + e.getMessage());
+            }
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            ServerEngine engine = config.createEngine(admission);
+            admission.start(engine);
+            engine.serve(serverChannel, connection -> {
+                System.out.println("New client connected: " + connection.getRemoteAddress());
+                ServerMetrics.Counter.CONNECTIONS_ACCEPTED.increment();
+                connections.add(connection);
+                return new ClientHandler(connection);
+            });
+        } catch (IOException e) {
+            System.err.println("Error starting server: " + e.getMessage());
+        }
+    }
+
+    private static void startWriteStatsReporter() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("write-stats").daemon().factory());
+        reporter.scheduleAtFixedRate(() -> System.out.println("Write batching: " + WriteStats.summary()),
+                WRITE_STATS_INTERVAL_SECONDS, WRITE_STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void registerGauges() {
+        ServerMetrics.registerGauge("connections_active", "Open client connections", connections::size);
+        ServerMetrics.registerGauge("connections_pre_auth", "Connections still logging in", admission::getPreAuth);
+        ServerMetrics.registerGauge("engine_lag_ms", "Delay before the engine runs a newly queued event",
+                () -> TimeUnit.NANOSECONDS.toMillis(admission.getLagNanos()));
+        ServerMetrics.registerGauge("users_online", "Authenticated users", clientConnections::size);
+        ServerMetrics.registerGauge("channels", "Channels with at least one member", channelRegistry::channelCount);
+        ServerMetrics.registerGauge("registered_users", "Accounts in the user store", userStore::size);
+        ServerMetrics.registerGauge("auth_queue_depth", "Authentication tasks waiting for a thread", authenticator::getQueueDepth);
+        ServerMetrics.registerGauge("auth_active", "Authentication tasks running", authenticator::getActiveCount);
+        ServerMetrics.registerCounter("auth_rejected_total", "Authentications refused because the queue was full", authenticator::getRejected);
+        ServerMetrics.registerGauge("outbound_backlog_messages", "Messages queued to all connections", () -> {
+            long total = 0;
+            for (Connection connection : connections) total += connection.getPendingMessages();
+            return total;
+        });
+        ServerMetrics.registerGauge("outbound_backlog_bytes", "Bytes queued to all connections", () -> {
+            long total = 0;
+            for (Connection connection : connections) total += connection.getPendingBytes();
+            return total;
+        });
+        ServerMetrics.registerGauge("outbound_backlog_max_messages", "Largest queue of any single connection", () -> {
+            long max = 0;
+            for (Connection connection : connections) max = Math.max(max, connection.getPendingMessages());
+            return max;
+        });
+        ServerMetrics.registerGauge("sessions_resumable", "Sessions holding a resume token, connected or not", resumableSessions::size);
+        ServerMetrics.registerGauge("timeouts_scheduled", "Connection timeout checks waiting on the timing wheel", timers::pendingCount);
+        ServerMetrics.registerGauge("cluster_peers_connected", "Cluster peers this node can send to", cluster::getConnectedPeers);
+        ServerMetrics.registerGauge("cluster_remote_users", "Users connected to other nodes", () -> cluster.getRemoteUsers().size());
+        ServerMetrics.registerGauge("compression_ratio_percent", "Compressed output as a percentage of its input", () -> {
+            long input = ServerMetrics.Counter.COMPRESSION_INPUT_BYTES.sum();
+            return input == 0 ? 100 : ServerMetrics.Counter.COMPRESSION_OUTPUT_BYTES.sum() * 100 / input;
+        });
+        ServerMetrics.registerCounter("socket_writes_total", "Socket write calls", WriteStats::getWrites);
+        ServerMetrics.registerCounter("socket_write_bytes_total", "Bytes written to sockets", WriteStats::getBytes);
+    }
+
+    static String hashPassword(String password) {
+        MessageDigest digest = SHA_256.get();
+        if (digest == null) return null;
+        long start = System.nanoTime();
+        String hash = HEX.formatHex(digest.digest(password.getBytes(StandardCharsets.UTF_8)));
+        ServerMetrics.Timer.PASSWORD_HASH.recordSince(start);
+        return hash;
+    }
+
+    // Each recipient has its own outbound queue, so this never waits on a slow socket. The
+    // message is encoded once per wire protocol however many members the channel has.
+    static void broadcast(ChannelRegistry registry, String channel, String message) {
+        broadcast(registry, channel, message, 0);
+    }
+
+    // journalSequence is the message's number in the channel's journal, or 0 if not journaled.
+    static void broadcast(ChannelRegistry registry, String channel, String message, long journalSequence) {
+        long start = System.nanoTime();
+        int delivered = 0;
+        SharedMessage shared = new SharedMessage(channel, message, journalSequence);
+        try {
+            for (Connection recipient : registry.members(channel)) {
+                recipient.sendMessage(shared);
+                delivered++;
+            }
+        } finally {
+            shared.release();
+        }
+        ServerMetrics.Counter.MESSAGES_DELIVERED.add(delivered);
+        ServerMetrics.Timer.BROADCAST.recordSince(start);
+    }
+
+    private static boolean isOnline(String username) {
+        return clientConnections.containsKey(username) || cluster.isRemoteOnline(username);
+    }
+
+    // Each local user's channels, for the snapshot a cluster peer gets when its link comes up.
+    private static Map<String, List<String>> localMemberships() {
+        Map<Connection, List<String>> memberships = channelRegistry.memberships();
+        Map<String, List<String>> users = new HashMap<>();
+        clientConnections.forEach((username, connection) -> users.put(username, memberships.getOrDefault(connection, List.of())));
+        return users;
+    }
+
+    // Local fan-out plus one relay frame per cluster peer.
+    private static void announce(String channel, String message) {
+        broadcast(channelRegistry, channel, message);
+        cluster.relay(channel, message, false);
+    }
+
+    private static class ClusterListener implements ClusterNode.Listener {
+        @Override
+        public void onRemoteMessage(String channel, String message, boolean journaled) {
+            long sequence = 0;
+            if (journaled) {
+                try {
+                    sequence = messageJournal.append(channel, message);
+                } catch (IOException e) {
+                    System.err.println("Error writing message journal: " + e.getMessage());
+                }
+            }
+            broadcast(channelRegistry, channel, message, sequence);
+        }
+
+        // Two nodes can accept the same login at once; the session on the lower node id wins.
+        @Override
+        public void onRemoteUserOnline(String username, String nodeId) {
+            if (nodeId.compareTo(cluster.getNodeId()) < 0) {
+                logOut(username, "you were logged in from another server.");
+            }
+            presence.update(username);
+        }
+
+        @Override
+        public void onRemoteUserOffline(String username) {
+            presence.update(username);
+        }
+
+        @Override
+        public void onPeerDown(String nodeId, Map<String, Set<String>> channelsByUser) {
+            System.err.println("Cluster peer " + nodeId + " is down; dropping its " + channelsByUser.size() + " user(s)");
+            for (Map.Entry<String, Set<String>> user : channelsByUser.entrySet()) {
+                presence.update(user.getKey());
+                // What the user's own node would have said in each channel, had it seen them go.
+                for (String channel : user.getValue()) {
+                    broadcast(channelRegistry, channel, user.getKey() + " has left the chat.");
+                }
+            }
+        }
+
+        @Override
+        public void onRemoteRegistration(String username, String passwordHash, String nodeId) {
+            try {
+                if (userStore.registerReplicated(username, passwordHash, nodeId)) {
+                    // Whoever is logged in here under the name registered it too, and lost.
+                    System.err.println("Registration of " + username + " on " + nodeId + " replaced this node's");
+                    logOut(username, LOST_REGISTRATION);
+                }
+            } catch (IOException e) {
+                System.err.println("Error saving replicated user " + username + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("Error hashing password: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Ends the local session of a user the cluster has given to another node. reason completes
+    // "Resume failed: " when resume is on.
+    private static void logOut(String username, String reason) {
+        Connection local = clientConnections.get(username);
+        if (local == null) return;
+        ClientHandler session = sessionOf(local);
+        if (session != null) {
+            session.revoke(reason);
+        } else {
+            // Resume is off, so closing cannot leave anything to come back to.
+            local.sendMessage(ChannelRegistry.DEFAULT_CHANNEL, Character.toUpperCase(reason.charAt(0)) + reason.substring(1));
+            local.close();
+        }
+    }
+
+    // Only binary clients can send line breaks. Text clients read lines, and a lone CR ends one
+    // there too, so every break becomes the LF that TextProtocol splits on and each line of the
+    // message is still followed by its channel line.
+    private static String normalizeLineBreaks(String text) {
+        return text.indexOf('\r') < 0 ? text : text.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    // The session holding a resume token for the connection, or null.
+    private static ClientHandler sessionOf(Connection connection) {
+        for (ClientHandler session : resumableSessions.values()) {
+            if (session.connection == connection) return session;
+        }
+        return null;
+    }
+
+    private static class ClientHandler implements SessionHandler {
+        private enum State {
+            CHOICE, LOGIN_USERNAME, LOGIN_PASSWORD,
+            REGISTER_USERNAME, REGISTER_PASSWORD, REGISTER_CONFIRM,
+            CHAT, CLOSED
+        }
+
+        private enum AuthResult { SUCCESS, REJECTED, ERROR }
+
+        private static final int MAX_ATTEMPTS = 3;
+        // Counted in events, and a text-protocol message is two: the channel line and the text.
+        private static final int MAX_DELAYED_EVENTS = 200;
+        private static final long FLOOD_NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+        private final Connection connection;
+        private final Set<String> channels = new LinkedHashSet<>();
+        private final ArrayDeque<Runnable> deferred = new ArrayDeque<>();
+        private final long connectedNanos = System.nanoTime();
+        // Read by the timing wheel thread, which never takes the handler lock.
+        private volatile boolean inChat;
+        private volatile boolean disconnected;
+        private volatile TimingWheel.Timeout timeoutCheck;
+        // Only touched by checkTimeouts.
+        private boolean closing;
+        private long lastHeartbeatNanos;
+        private long stallBytesWritten;
+        private long stallSinceNanos;
+        private TokenBucket floodBucket = floodControl.newUserBucket();
+        private boolean authenticating;
+        // Set while flood control holds this client's input back.
+        private boolean throttled;
+        private long lastFloodNoticeNanos;
+        private State state = State.CHOICE;
+        private long presenceVersion = -1;
+        private String username;
+        private String targetChannel;
+        private String pendingUsername;
+        private String pendingPassword;
+        private int attempts;
+        private String resumeToken;
+        private TimingWheel.Timeout resumeExpiry;
+
+        public ClientHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        private boolean isValidUsername(String username) {
+            return username != null &&
+                    username.length() >= MIN_USERNAME_LENGTH &&
+                    username.matches("^[a-zA-Z0-9_]+$");
+        }
+
+        private boolean isValidPassword(String password) {
+            return password != null &&
+                    password.length() >= MIN_PASSWORD_LENGTH;
+        }
+
+        @Override
+        public void onConnect() {
+            connection.send("1. Login\n2. Register\nChoice: ");
+            if (timeoutCheckMillis > 0) {
+                timeoutCheck = timers.schedule(this::checkTimeouts, timeoutCheckMillis);
+            }
+        }
+
+        // Runs on the timing wheel thread: each check reads a few volatile fields, acts if a
+        // timeout has passed and then schedules the next check, so a connection only ever holds
+        // one timer however often it reads or writes.
+        private void checkTimeouts() {
+            if (disconnected) return;
+            long now = System.nanoTime();
+            if (!inChat) {
+                if (!closing && authTimeoutNanos > 0 && now - connectedNanos >= authTimeoutNanos) {
+                    closing = true;
+                    ServerMetrics.Counter.AUTH_TIMEOUTS.increment();
+                    connection.send("Login timed out.");
+                    connection.close();
+                }
+            } else {
+                long silent = now - connection.getLastReadNanos();
+                if (idleTimeoutNanos > 0 && silent >= idleTimeoutNanos) {
+                    System.out.println("Disconnecting idle client: " + connection.getRemoteAddress());
+                    ServerMetrics.Counter.IDLE_DISCONNECTS.increment();
+                    connection.abort();
+                    return;
+                }
+                if (heartbeatNanos > 0 && silent >= heartbeatNanos && now - lastHeartbeatNanos >= heartbeatNanos) {
+                    lastHeartbeatNanos = now;
+                    ServerMetrics.Counter.HEARTBEATS_SENT.increment();
+                    connection.sendMessage(CONTROL_CHANNEL, HEARTBEAT);
+                }
+            }
+            if (writeStallNanos > 0 && isWriteStalled(now)) {
+                System.out.println("Disconnecting stalled client: " + connection.getRemoteAddress());
+                ServerMetrics.Counter.WRITE_STALL_DISCONNECTS.increment();
+                connection.abort();
+                return;
+            }
+            timeoutCheck = timers.schedule(this::checkTimeouts, timeoutCheckMillis);
+        }
+
+        // Stalled means output has been queued since the last check and none of it was written.
+        private boolean isWriteStalled(long now) {
+            if (connection.getPendingBytes() == 0) {
+                stallSinceNanos = 0;
+                return false;
+            }
+            long written = connection.getBytesWritten();
+            if (stallSinceNanos == 0 || written != stallBytesWritten) {
+                stallBytesWritten = written;
+                stallSinceNanos = now;
+                return false;
+            }
+            return now - stallSinceNanos >= writeStallNanos;
+        }
+
+        // Handler methods are synchronized because authentication results arrive on the
+        // authenticator's threads; input that arrives meanwhile, or while flood control is
+        // delaying this client, waits in deferred.
+        @Override
+        public synchronized void onLine(String line) {
+            if (authenticating || throttled) {
+                defer(() -> handleLine(line));
+                return;
+            }
+            handleLine(line);
+        }
+
+        private void defer(Runnable event) {
+            if (throttled && deferred.size() >= MAX_DELAYED_EVENTS) {
+                ServerMetrics.Counter.FLOOD_DROPPED.increment();
+                warnDropped(ChannelRegistry.DEFAULT_CHANNEL);
+                return;
+            }
+            deferred.add(event);
+        }
+
+        private void runDeferred() {
+            Runnable next;
+            while (!authenticating && !throttled && state != State.CLOSED && (next = deferred.poll()) != null) {
+                next.run();
+            }
+        }
+
+        private void handleLine(String line) {
+            switch (state) {
+                case CHOICE:
+                    handleChoice(line);
+                    break;
+                case LOGIN_USERNAME:
+                    handleLoginUsername(line);
+                    break;
+                case LOGIN_PASSWORD:
+                    handleLoginPassword(line);
+                    break;
+                case REGISTER_USERNAME:
+                    handleRegistrationUsername(line);
+                    break;
+                case REGISTER_PASSWORD:
+                    handleRegistrationPassword(line);
+                    break;
+                case REGISTER_CONFIRM:
+                    handleRegistrationConfirm(line);
+                    break;
+                case CHAT:
+                    handleMessage(line);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public synchronized void onMessage(String channel, String message) {
+            if (authenticating || throttled) {
+                defer(() -> onMessage(channel, message));
+                return;
+            }
+            if (state == State.CHAT) {
+                handleChatMessage(channel, message);
+            }
+        }
+
+        @Override
+        public synchronized void onDisconnect() {
+            connections.remove(connection);
+            admission.release(connection.getRemoteAddress(), !inChat);
+            ServerMetrics.Counter.CONNECTIONS_CLOSED.increment();
+            disconnected = true;
+            TimingWheel.Timeout check = timeoutCheck;
+            if (check != null) check.cancel();
+            // Leaving through disconnect() has already set CLOSED, so only a dropped client may resume.
+            boolean resumable = state == State.CHAT && resumeToken != null;
+            state = State.CLOSED;
+            deferred.clear();
+            if (resumable) {
+                // The session keeps its channels and its place in the online list meanwhile.
+                connection.detach();
+                resumeExpiry = timers.schedule(() -> Thread.ofVirtual().start(this::expire), resumeMillis);
+            } else {
+                cleanup();
+            }
+        }
+
+        // Only once per connection: a handler serves a single connection.
+        private void markInChat() {
+            if (!inChat) admission.loggedIn();
+            inChat = true;
+        }
+
+        private synchronized void expire() {
+            cleanup();
+        }
+
+        // Ends the session for good. The token is revoked before the connection closes, so the
+        // drop is not taken for a lost connection and the client cannot resume into it.
+        private synchronized void revoke(String reason) {
+            if (resumeToken != null) {
+                resumableSessions.remove(resumeToken, this);
+                resumeToken = null;
+            }
+            if (disconnected) {
+                // Already dropped and only waiting for its client to resume
+                if (resumeExpiry != null) resumeExpiry.cancel();
+                cleanup();
+                return;
+            }
+            connection.sendMessage(CONTROL_CHANNEL, RESUME_FAILED + ": " + reason);
+            disconnect();
+        }
+
+        // Gives this session to next, whose client presented its resume token. Returns false
+        // if the session has already ended.
+        private synchronized boolean handOver(ClientHandler next) {
+            if (username == null) return false;
+            if (resumeExpiry != null) resumeExpiry.cancel();
+            next.username = username;
+            next.channels.addAll(channels);
+            next.floodBucket = floodBucket;
+            next.presenceVersion = presenceVersion;
+            username = null;
+            channels.clear();
+            resumeToken = null;
+            if (state != State.CLOSED) {
+                // The client reconnected before this side noticed the old connection was dead.
+                state = State.CLOSED;
+                connection.abort();
+            }
+            return true;
+        }
+
+        private void authenticate(Callable<AuthResult> task, Consumer<AuthResult> completion) {
+            authenticating = true;
+            try {
+                authenticator.submit(task).whenComplete((result, error) -> {
+                    synchronized (this) {
+                        authenticating = false;
+                        if (state == State.CLOSED) return;
+                        completion.accept(error != null ? AuthResult.ERROR : result);
+                        runDeferred();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                authenticating = false;
+                connection.send("Server busy, please try again later.");
+                disconnect();
+            }
+        }
+
+        private void handleChoice(String choice) {
+            String[] words = choice.trim().split("\\s+");
+            if (words[0].equals(RESUME)) {
+                resumeSession(words);
+                return;
+            }
+            if (words[0].equals(PAGING)) {
+                connection.sendJournalSequences();
+                return;
+            }
+            switch (choice.trim()) {
+                case "1":
+                    promptLoginUsername();
+                    break;
+                case "2":
+                    promptRegistrationUsername();
+                    break;
+                default:
+                    connection.send("Invalid choice!");
+                    disconnect();
+                    break;
+            }
+        }
+
+        // Takes over a dropped session without logging in again, and resends whatever its client
+        // missed after the last sequence it saw. A failed attempt leaves the menu open for a login.
+        private void resumeSession(String[] words) {
+            ClientHandler previous = null;
+            long lastSequence = 0;
+            if (words.length == 3) {
+                try {
+                    lastSequence = Long.parseLong(words[2]);
+                    previous = resumableSessions.remove(words[1]);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            if (previous == null || !previous.handOver(this)) {
+                ServerMetrics.Counter.RESUME_FAILURES.increment();
+                connection.send(RESUME_FAILED + ": session expired.");
+                return;
+            }
+
+            Connection old = previous.connection;
+            int replayed;
+            long lost;
+            synchronized (connection) {
+                ReplayLog log = old.handOver(connection);
+                List<ReplayLog.Entry> missed = log.since(lastSequence);
+                long from = missed.isEmpty() ? log.lastSequence() : missed.get(0).first - 1;
+                lost = Math.max(0, from - lastSequence);
+                connection.send(RESUMED + from);
+                connection.continueAfter(from);
+                for (ReplayLog.Entry entry : missed) {
+                    connection.sendMessage(entry.channel, entry.message);
+                }
+                connection.attachReplayLog(log);
+                replayed = missed.size();
+            }
+            synchronized (clientConnections) {
+                clientConnections.replace(username, old, connection);
+            }
+            // Joining before parting means a broadcast running meanwhile may arrive twice, but
+            // never not at all.
+            for (String channel : channels) {
+                channelRegistry.join(channel, connection);
+                channelRegistry.part(channel, old);
+            }
+            state = State.CHAT;
+            markInChat();
+            ServerMetrics.Counter.SESSIONS_RESUMED.increment();
+            ServerMetrics.Counter.RESUME_REPLAYED.add(replayed);
+            if (lost > 0) {
+                ServerMetrics.Counter.RESUME_LOST.add(lost);
+                connection.sendMessage(ChannelRegistry.DEFAULT_CHANNEL, lost + " message(s) sent while you were away could not be resent.");
+            }
+            issueResumeToken();
+        }
+
+        private void issueResumeToken() {
+            byte[] bytes = new byte[RESUME_TOKEN_BYTES];
+            TOKEN_RANDOM.nextBytes(bytes);
+            resumeToken = HEX.formatHex(bytes);
+            resumableSessions.put(resumeToken, this);
+            connection.sendMessage(CONTROL_CHANNEL, RESUME_TOKEN + " " + resumeToken);
+        }
+
+        private void promptRegistrationUsername() {
+            state = State.REGISTER_USERNAME;
+            connection.send("Enter desired username (min " + MIN_USERNAME_LENGTH + " chars, alphanumeric and underscore only): ");
+        }
+
+        private void handleRegistrationUsername(String line) {
+            String newUsername = line.trim();
+            if (!isValidUsername(newUsername)) {
+                connection.send("Invalid username format!");
+                promptRegistrationUsername();
+                return;
+            }
+
+            if (userStore.exists(newUsername)) {
+                connection.send("Username already exists!");
+                promptRegistrationUsername();
+                return;
+            }
+
+            pendingUsername = newUsername;
+            state = State.REGISTER_PASSWORD;
+            connection.send("Enter password (min " + MIN_PASSWORD_LENGTH + " chars): ");
+        }
+
+        private void handleRegistrationPassword(String line) {
+            String password = line.trim();
+            if (!isValidPassword(password)) {
+                connection.send("Invalid password format!");
+                promptRegistrationUsername();
+                return;
+            }
+
+            pendingPassword = password;
+            state = State.REGISTER_CONFIRM;
+            connection.send("Confirm password: ");
+        }
+
+        private void handleRegistrationConfirm(String line) {
+            String password = pendingPassword;
+            pendingPassword = null;
+            if (!password.equals(line.trim())) {
+                connection.send("Passwords don't match!");
+                promptRegistrationUsername();
+                return;
+            }
+
+            // The name was free when it was entered, but another client may have taken it since.
+            String newUsername = pendingUsername;
+            authenticate(() -> {
+                String hashedPassword = hashPassword(password);
+                if (hashedPassword == null) return AuthResult.ERROR;
+                if (!userStore.register(newUsername, hashedPassword, cluster.getNodeId())) return AuthResult.REJECTED;
+                cluster.userRegistered(newUsername, hashedPassword);
+                return AuthResult.SUCCESS;
+            }, result -> {
+                switch (result) {
+                    case SUCCESS:
+                        ServerMetrics.Counter.REGISTRATIONS.increment();
+                        username = newUsername;
+                        connection.send("Registration successful!");
+                        enterChat();
+                        // Another node's registration of the name may have won before this user
+                        // was online here for onRemoteRegistration to find.
+                        String registeredOn = userStore.registeredOn(newUsername);
+                        if (registeredOn != null && !registeredOn.equals(cluster.getNodeId())) {
+                            logOut(newUsername, LOST_REGISTRATION);
+                        }
+                        break;
+                    case REJECTED:
+                        ServerMetrics.Counter.REGISTRATION_FAILURES.increment();
+                        connection.send("Username already exists!");
+                        promptRegistrationUsername();
+                        break;
+                    default:
+                        ServerMetrics.Counter.REGISTRATION_FAILURES.increment();
+                        connection.send("Error during registration. Please try again.");
+                        disconnect();
+                        break;
+                }
+            });
+        }
+
+        private void promptLoginUsername() {
+            state = State.LOGIN_USERNAME;
+            connection.send("Enter username: ");
+        }
+
+        private void handleLoginUsername(String line) {
+            pendingUsername = line.trim();
+            state = State.LOGIN_PASSWORD;
+            connection.send("Enter password: ");
+        }
+
+        private void handleLoginPassword(String line) {
+            String password = line.trim();
+            String loginUsername = pendingUsername;
+            authenticate(() -> {
+                String hashedPassword = hashPassword(password);
+                if (hashedPassword == null) return AuthResult.ERROR;
+                return hashedPassword.equals(userStore.getPasswordHash(loginUsername)) ? AuthResult.SUCCESS : AuthResult.REJECTED;
+            }, this::completeLogin);
+        }
+
+        private void completeLogin(AuthResult result) {
+            if (result == AuthResult.ERROR) {
+                ServerMetrics.Counter.LOGIN_FAILURES.increment();
+                connection.send("Error during login. Please try again.");
+                disconnect();
+                return;
+            }
+
+            if (result == AuthResult.SUCCESS) {
+                endDroppedSession(pendingUsername);
+                synchronized (clientConnections) {
+                    if (clientConnections.containsKey(pendingUsername) || cluster.isRemoteOnline(pendingUsername)) {
+                        ServerMetrics.Counter.LOGIN_FAILURES.increment();
+                        connection.send("User already logged in!");
+                        disconnect();
+                        return;
+                    }
+                    username = pendingUsername;
+                    ServerMetrics.Counter.LOGINS.increment();
+                    connection.send("Login successful!");
+                }
+            }
+
+            if (username != null) {
+                enterChat();
+                return;
+            }
+
+            attempts++;
+            ServerMetrics.Counter.LOGIN_FAILURES.increment();
+            connection.send("Invalid credentials! Attempts remaining: " + (MAX_ATTEMPTS - attempts));
+            if (attempts < MAX_ATTEMPTS) {
+                promptLoginUsername();
+            } else {
+                connection.send("Too many failed attempts. Please try again later.");
+                disconnect();
+            }
+        }
+
+        // A full login replaces a session that is only waiting for its client to resume.
+        private void endDroppedSession(String name) {
+            Connection existing = clientConnections.get(name);
+            if (existing == null || !existing.isDetached()) return;
+            for (ClientHandler session : resumableSessions.values()) {
+                if (session.connection == existing) session.expire();
+            }
+        }
+
+        private void enterChat() {
+            state = State.CHAT;
+            markInChat();
+            if (resumeMillis > 0) {
+                // Started before anything is sent, so the client's count matches from the first message.
+                connection.startReplayLog(resumeBuffer);
+            }
+            synchronized (clientConnections) {
+                clientConnections.put(username, connection);
+            }
+            cluster.userOnline(username);
+            presence.update(username);
+
+            channels.add(ChannelRegistry.DEFAULT_CHANNEL);
+            channelRegistry.join(ChannelRegistry.DEFAULT_CHANNEL, connection);
+            cluster.channelJoined(username, ChannelRegistry.DEFAULT_CHANNEL);
+            announce(ChannelRegistry.DEFAULT_CHANNEL, username + " has joined the chat.");
+            showOnlineUsers(ChannelRegistry.DEFAULT_CHANNEL, true);
+            replayHistory(ChannelRegistry.DEFAULT_CHANNEL, replayCount, 0);
+            if (resumeMillis > 0) {
+                issueResumeToken();
+            }
+        }
+
+        // Clients send the target channel on its own line before each message;
+        // a message without one goes to the default channel.
+        private void handleMessage(String line) {
+            if (targetChannel == null && ChannelRegistry.isValidName(line)) {
+                targetChannel = line;
+                return;
+            }
+            String channel = targetChannel != null ? targetChannel : ChannelRegistry.DEFAULT_CHANNEL;
+            targetChannel = null;
+            handleChatMessage(channel, line);
+        }
+
+        private void handleChatMessage(String channel, String line) {
+            String[] command = line.trim().split("\\s+");
+            if (!command[0].equalsIgnoreCase(HEARTBEAT_REPLY)
+                    && isFlooding(floodControl.acquireUser(floodBucket), channel, null, () -> handleChatMessage(channel, line))) {
+                return;
+            }
+            switch (command[0].toLowerCase()) {
+                case "/exit":
+                    disconnect();
+                    break;
+                case HEARTBEAT_REPLY:
+                    break;
+                case "/users":
+                    showOnlineUsers(channel, command.length > 1 && command[1].equalsIgnoreCase("all"));
+                    break;
+                case "/join":
+                    joinChannel(channel, command.length > 1 ? command[1] : null, command.length > 2 ? command[2] : null);
+                    break;
+                case "/history":
+                    replayHistory(channel, parseCount(command.length > 1 ? command[1] : null, replayCount), 0);
+                    break;
+                case PAGE:
+                    sendRequestedPage(channel, command);
+                    break;
+                case "/search":
+                    search(channel, Arrays.copyOfRange(command, 1, command.length));
+                    break;
+                case "/part":
+                    partChannel(channel, command.length > 1 ? command[1] : channel);
+                    break;
+                case "/stats":
+                    if (admins.contains(username)) {
+                        connection.sendMessage(channel, ServerMetrics.summary());
+                    } else {
+                        connection.sendMessage(channel, "You are not allowed to use /stats.");
+                    }
+                    break;
+                case "/throttle":
+                    if (admins.contains(username)) {
+                        connection.sendMessage(channel, floodControl.summary());
+                    } else {
+                        connection.sendMessage(channel, "You are not allowed to use /throttle.");
+                    }
+                    break;
+                case "/channels":
+                    connection.sendMessage(channel, "Your channels: " + String.join(" ", channels));
+                    break;
+                default:
+                    if (!channels.contains(channel)) {
+                        connection.sendMessage(channel, "You are not in " + channel + ". Use /join " + channel + " first.");
+                        return;
+                    }
+                    ServerMetrics.Counter.MESSAGES_RECEIVED.increment();
+                    publishWithinLimit(channel, username + ": " + normalizeLineBreaks(line));
+                    break;
+            }
+        }
+
+        private void publishWithinLimit(String channel, String message) {
+            if (isFlooding(floodControl.acquireChannel(channel), channel, channel, () -> publishWithinLimit(channel, message))) {
+                return;
+            }
+            publish(channel, message);
+        }
+
+        // Applies the flood action to a line that came waitMillis too early. Returns false if
+        // the line may go now; limitedChannel is null when it was the user's own limit.
+        private boolean isFlooding(long waitMillis, String channel, String limitedChannel, Runnable retry) {
+            if (waitMillis == 0) return false;
+            floodControl.recordThrottled(username, limitedChannel);
+            switch (floodControl.getAction()) {
+                case DELAY:
+                    // Later input queues behind this line until the bucket has refilled.
+                    throttled = true;
+                    deferred.addFirst(retry);
+                    timers.schedule(() -> Thread.ofVirtual().start(this::resumeAfterThrottle), waitMillis);
+                    break;
+                case DROP:
+                    warnDropped(channel);
+                    break;
+                default:
+                    connection.sendMessage(channel, "Disconnected for flooding.");
+                    disconnect();
+                    break;
+            }
+            return true;
+        }
+
+        private void warnDropped(String channel) {
+            long now = System.nanoTime();
+            if (now - lastFloodNoticeNanos >= FLOOD_NOTICE_INTERVAL_NANOS) {
+                lastFloodNoticeNanos = now;
+                connection.sendMessage(channel, "You are sending messages too fast; some were dropped.");
+            }
+        }
+
+        private synchronized void resumeAfterThrottle() {
+            throttled = false;
+            runDeferred();
+        }
+
+        private int parseCount(String value, int defaultCount) {
+            try {
+                return value == null ? defaultCount : Math.max(0, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                return defaultCount;
+            }
+        }
+
+        // "/join #channel 1234" replays everything after sequence 1234 instead of the last few messages.
+        private void joinChannel(String replyChannel, String channel, String afterSequence) {
+            if (!ChannelRegistry.isValidName(channel)) {
+                connection.sendMessage(replyChannel, "Usage: /join #channel [after-sequence]");
+                return;
+            }
+            if (!channels.add(channel)) {
+                connection.sendMessage(channel, "You are already in " + channel + ".");
+                return;
+            }
+            channelRegistry.join(channel, connection);
+            cluster.channelJoined(username, channel);
+            announce(channel, username + " has joined " + channel + ".");
+            long after = 0;
+            if (afterSequence != null) {
+                try {
+                    after = Long.parseLong(afterSequence);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            replayHistory(channel, after > 0 ? MAX_REPLAY : replayCount, after);
+        }
+
+        // Sends the requested history as one buffer rather than message by message. A client
+        // that pages through history itself always gets a page, even an empty one, since that
+        // tells it where the channel's history continues.
+        private void replayHistory(String channel, int count, long afterSequence) {
+            count = Math.min(count, MAX_REPLAY);
+            boolean paged = connection.sendsJournalSequences();
+            if (count == 0 && !paged) return;
+            try {
+                List<MessageJournal.Entry> entries = afterSequence > 0
+                        ? messageJournal.readSince(channel, afterSequence, count)
+                        : messageJournal.readLast(channel, count);
+                if (paged) {
+                    sendPage(channel, afterSequence > 0 ? PAGE_AFTER : PAGE_LATEST, entries,
+                            messageJournal.lastSequence(channel) + 1);
+                    return;
+                }
+                if (entries.isEmpty()) return;
+                List<String> messages = new ArrayList<>(entries.size());
+                for (MessageJournal.Entry entry : entries) {
+                    messages.add(entry.text);
+                }
+                connection.sendMessages(channel, messages);
+            } catch (IOException e) {
+                System.err.println("Error reading message journal: " + e.getMessage());
+            }
+        }
+
+        // "/page before|after <sequence> <count>", from clients fetching more of the channel's
+        // history as their user scrolls.
+        private void sendRequestedPage(String channel, String[] command) {
+            if (!channels.contains(channel)) {
+                connection.sendMessage(channel, "You are not in " + channel + ".");
+                return;
+            }
+            String direction = command.length == 4 ? command[1] : "";
+            long sequence = -1;
+            int count = -1;
+            try {
+                sequence = Long.parseLong(command[2]);
+                count = Math.min(Integer.parseInt(command[3]), MAX_REPLAY);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+            }
+            if (sequence < 0 || count < 0 || !(direction.equals(PAGE_BEFORE) || direction.equals(PAGE_AFTER))) {
+                connection.sendMessage(channel, "Usage: " + PAGE + " before|after <sequence> <count>");
+                return;
+            }
+            try {
+                List<MessageJournal.Entry> entries = direction.equals(PAGE_BEFORE)
+                        ? messageJournal.readBefore(channel, sequence, count)
+                        : messageJournal.readSince(channel, sequence, count);
+                sendPage(channel, direction, entries, sequence);
+            } catch (IOException e) {
+                System.err.println("Error reading message journal: " + e.getMessage());
+            }
+        }
+
+        // emptyFirst is the first sequence the header names when there are no entries. The
+        // header and its rows go out as a single message, so they are queued, and kept for a
+        // resume, as one piece that is never split or partly dropped.
+        private void sendPage(String channel, String direction, List<MessageJournal.Entry> entries, long emptyFirst) {
+            long first = entries.isEmpty() ? emptyFirst : entries.get(0).sequence;
+            StringBuilder page = new StringBuilder();
+            StringJoiner lineCounts = new StringJoiner(",", " ", "");
+            boolean multiLine = false;
+            for (MessageJournal.Entry entry : entries) {
+                int lines = TextProtocol.lineCount(entry.text);
+                multiLine |= lines > 1;
+                lineCounts.add(Integer.toString(lines));
+                page.append('\n').append(entry.text);
+            }
+            page.insert(0, PAGE + " " + channel + " " + direction + " " + first + " " + entries.size() + (multiLine ? lineCounts : ""));
+            connection.sendMessage(CONTROL_CHANNEL, page.toString());
+        }
+
+        // "/search <terms> [#channel]" finds the newest messages containing every term, in one
+        // channel or in all of the user's channels.
+        private void search(String replyChannel, String[] words) {
+            long start = System.nanoTime();
+            List<String> searched = new ArrayList<>(channels);
+            int termCount = words.length;
+            if (termCount > 0 && ChannelRegistry.isValidName(words[termCount - 1])) {
+                searched = List.of(words[--termCount]);
+            }
+            String query = String.join(" ", Arrays.copyOf(words, termCount));
+            if (SearchIndex.terms(query).isEmpty()) {
+                connection.sendMessage(replyChannel, "Usage: /search <terms> [#channel]");
+                return;
+            }
+            if (!channels.containsAll(searched)) {
+                connection.sendMessage(replyChannel, "You are not in " + searched.get(0) + ".");
+                return;
+            }
+            List<Map.Entry<String, MessageJournal.Entry>> matches = new ArrayList<>();
+            try {
+                for (String channel : searched) {
+                    for (MessageJournal.Entry entry : messageJournal.search(channel, query, MAX_SEARCH_RESULTS)) {
+                        matches.add(Map.entry(channel, entry));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error searching message journal: " + e.getMessage());
+                connection.sendMessage(replyChannel, "Search failed, please try again.");
+                return;
+            }
+            // Only the newest MAX_SEARCH_RESULTS across all channels, oldest first.
+            matches.sort(Comparator.comparingLong(match -> match.getValue().timestamp));
+            matches = matches.subList(Math.max(0, matches.size() - MAX_SEARCH_RESULTS), matches.size());
+            List<String> lines = new ArrayList<>(matches.size() + 1);
+            lines.add(matches.isEmpty() ? "No messages match \"" + query + "\"."
+                    : matches.size() + " newest message(s) matching \"" + query + "\":");
+            for (String channel : searched) {
+                if (messageJournal.isIndexing(channel)) {
+                    lines.add("Still indexing older messages in " + channel + ", so some may be missing.");
+                }
+            }
+            for (Map.Entry<String, MessageJournal.Entry> match : matches) {
+                MessageJournal.Entry entry = match.getValue();
+                lines.add("[" + match.getKey() + " " + entry.sequence + ", "
+                        + SEARCH_TIME.format(Instant.ofEpochMilli(entry.timestamp)) + "] " + entry.text);
+            }
+            connection.sendMessages(replyChannel, lines);
+            ServerMetrics.Timer.SEARCH.recordSince(start);
+        }
+
+        private void publish(String channel, String message) {
+            long sequence = 0;
+            try {
+                sequence = messageJournal.append(channel, message);
+            } catch (IOException e) {
+                System.err.println("Error writing message journal: " + e.getMessage());
+            }
+            broadcast(channelRegistry, channel, message, sequence);
+            cluster.relay(channel, message, true);
+        }
+
+        private void partChannel(String replyChannel, String channel) {
+            if (!channels.remove(channel)) {
+                connection.sendMessage(replyChannel, "You are not in " + channel + ".");
+                return;
+            }
+            channelRegistry.part(channel, connection);
+            cluster.channelParted(username, channel);
+            if (channelRegistry.members(channel).isEmpty()) {
+                floodControl.forgetChannel(channel);
+            }
+            connection.sendMessage(channel, "You left " + channel + ".");
+            announce(channel, username + " has left " + channel + ".");
+        }
+
+        private void disconnect() {
+            state = State.CLOSED;
+            connection.close();
+        }
+
+        private void cleanup() {
+            if (resumeToken != null) {
+                resumableSessions.remove(resumeToken, this);
+                resumeToken = null;
+            }
+            if (username != null) {
+                boolean removed;
+                synchronized (clientConnections) {
+                    removed = clientConnections.remove(username, connection);
+                }
+                if (removed) {
+                    cluster.userOffline(username);
+                }
+                presence.update(username);
+                for (String channel : channels) {
+                    channelRegistry.part(channel, connection);
+                    if (channelRegistry.members(channel).isEmpty()) {
+                        floodControl.forgetChannel(channel);
+                    }
+                    announce(channel, username + " has left the chat.");
+                }
+                channels.clear();
+                username = null;
+            }
+        }
+
+        // The first call, and "/users all", send the full list; later calls only what changed.
+        private void showOnlineUsers(String channel, boolean full) {
+            Presence.Snapshot snapshot = presence.snapshot();
+            List<String> changes = full || presenceVersion < 0 ? null : presence.changesBetween(presenceVersion, snapshot.version);
+            presenceVersion = snapshot.version;
+            if (changes == null) {
+                connection.sendMessage(channel, snapshot.line);
+                return;
+            }
+            String count = " (" + snapshot.size + " online)";
+            if (changes.isEmpty()) {
+                connection.sendMessage(channel, "No change in online users" + count + ".");
+            } else {
+                connection.sendMessage(channel, "Online users changed: " + String.join(" ", changes) + count);
+            }
+        }
+    }
+}
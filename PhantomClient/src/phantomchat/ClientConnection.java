@@ -0,0 +1,341 @@
+package phantomchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+
+// The chat client's side of the wire, kept off the Swing EDT. Connecting and logging in run on
+// a virtual reader thread that completes a future; outgoing messages go through a queue that a
+// writer thread drains, so whatever has piled up goes out in one write and one flush. Messages
+// from the server are handed to the Listener on the reader thread, which also answers
+// heartbeats and resumes the session when the connection drops. The client asks for paged
+// history (see ChatServer.PAGING), so journaled messages arrive with their sequence.
+class ClientConnection {
+    interface Listener {
+        // Called on the reader thread, in the order the server sent them. sequence is the
+        // message's number in the channel's journal, or 0 if the server did not journal it.
+        void onMessage(String channel, long sequence, String message);
+
+        // A page of history: requested with requestPage, or the newest messages the server
+        // sends on joining (ChatServer.PAGE_LATEST). first is the sequence of the first message.
+        void onPage(String channel, String direction, long first, List<String> messages);
+
+        // Changes in the connection worth telling the user about, such as a reconnect.
+        void onNotice(String notice);
+    }
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_BATCH = 256;
+    private static final int RESUME_ATTEMPTS = 8;
+    private static final long RESUME_FIRST_DELAY_MILLIS = 250;
+    private static final long RESUME_MAX_DELAY_MILLIS = 8000;
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    // Waits here while a dropped connection is being resumed, and is sent once it is back.
+    private final LinkedBlockingDeque<Outgoing> outgoing = new LinkedBlockingDeque<>();
+    private volatile Socket socket;
+    private volatile Thread writer;
+    private volatile boolean closed;
+    // Reader thread only: the latest resume token, and how many messages have arrived,
+    // counted the way the server counts them.
+    private BufferedReader in;
+    private String resumeToken;
+    private long receivedSequence;
+
+    ClientConnection(String host, int port, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+    }
+
+    // Both complete once the server has let the user into the chat, or exceptionally with
+    // the server's refusal.
+    CompletableFuture<Void> login(String username, String password) {
+        return start("1", username, password);
+    }
+
+    CompletableFuture<Void> register(String username, String password) {
+        return start("2", username, password, password);
+    }
+
+    // Asks for up to count messages before or after sequence; they arrive through onPage.
+    void requestPage(String channel, String direction, long sequence, int count) {
+        send(channel, ChatServer.PAGE + " " + direction + " " + sequence + " " + count);
+    }
+
+    // Completes once the message has been written to the socket.
+    CompletableFuture<Void> send(String channel, String message) {
+        Outgoing item = new Outgoing(channel + "\n" + message + "\n");
+        if (closed) {
+            item.sent.completeExceptionally(new IOException("Not connected"));
+        } else {
+            outgoing.add(item);
+        }
+        return item.sent;
+    }
+
+    void close() {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private CompletableFuture<Void> start(String... lines) {
+        CompletableFuture<Void> loggedIn = new CompletableFuture<>();
+        Thread.ofVirtual().name("chat-reader").start(() -> {
+            try {
+                // The whole exchange is pipelined instead of waiting for each prompt
+                Writer out = connect();
+                out.write(ChatServer.PAGING + "\n");
+                for (String line : lines) {
+                    out.write(line + "\n");
+                }
+                out.flush();
+                String refusal = awaitLogin();
+                if (refusal != null) {
+                    throw new IOException(refusal);
+                }
+                startWriter(out);
+            } catch (IOException e) {
+                close();
+                loggedIn.completeExceptionally(e);
+                return;
+            }
+            loggedIn.complete(null);
+            readUntilClosed();
+        });
+        return loggedIn;
+    }
+
+    // Asks for a compressed stream first; servers with compression off answer uncompressed
+    private Writer connect() throws IOException {
+        Socket next = new Socket();
+        socket = next;
+        try {
+            next.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            throw new IOException("Error connecting to server: " + e.getMessage(), e);
+        }
+        OutputStream output = next.getOutputStream();
+        output.write(Compression.MAGIC);
+        in = new BufferedReader(new InputStreamReader(
+                Compression.awaitAnswer(new BufferedInputStream(next.getInputStream())), StandardCharsets.UTF_8));
+        return new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    // Reads past the server's prompts; returns null once it accepts, or the line refusing.
+    private String awaitLogin() throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.endsWith("successful!")) return null;
+            if (!line.endsWith(": ") && !line.matches("\\d\\. .*")) return line;
+        }
+        return "Connection closed by server";
+    }
+
+    private void readUntilClosed() {
+        do {
+            try {
+                readMessages();
+            } catch (IOException ignored) {
+                // Dropped; resumed below unless closed on purpose
+            }
+            stopWriter();
+        } while (!closed && resumeSession());
+        closed = true;
+        Outgoing unsent;
+        while ((unsent = outgoing.poll()) != null) {
+            unsent.sent.completeExceptionally(new IOException("Disconnected"));
+        }
+        listener.onNotice("Disconnected from server.");
+    }
+
+    private void readMessages() throws IOException {
+        String message;
+        while ((message = in.readLine()) != null) {
+            String channelLine = in.readLine();
+            if (channelLine == null) break;
+            receivedSequence++;
+            if (channelLine.equals(ChatServer.CONTROL_CHANNEL)) {
+                handleControl(message);
+                continue;
+            }
+            int space = channelLine.indexOf(' ');
+            String channel = space < 0 ? channelLine : channelLine.substring(0, space);
+            listener.onMessage(channel, space < 0 ? 0 : parseSequence(channelLine.substring(space + 1)), message);
+        }
+    }
+
+    // Only lines on ChatServer.CONTROL_CHANNEL are read as controls; the same text from a user
+    // is just a chat line.
+    private void handleControl(String control) throws IOException {
+        if (control.startsWith(ChatServer.PAGE + " ")) {
+            readPage(control.split(" "));
+        } else if (control.equals(ChatServer.HEARTBEAT)) {
+            send(ChannelRegistry.DEFAULT_CHANNEL, ChatServer.HEARTBEAT_REPLY);
+        } else if (control.startsWith(ChatServer.RESUME_TOKEN + " ")) {
+            resumeToken = control.substring(ChatServer.RESUME_TOKEN.length() + 1);
+        } else if (control.startsWith(ChatServer.RESUME_FAILED)) {
+            // The server has ended the session, so the close that follows is not resumed.
+            resumeToken = null;
+            listener.onMessage(ChannelRegistry.DEFAULT_CHANNEL, 0, control);
+        }
+    }
+
+    // The header's messages follow it in the same write, so nothing else arrives in between.
+    // Multi-line messages come one line per pair, as the header's line counts say.
+    private void readPage(String[] header) throws IOException {
+        boolean valid = header.length == 5 || header.length == 6;
+        String channel = valid ? header[1] : "";
+        long first = valid ? parseSequence(header[3]) : 0;
+        int count = valid ? (int) parseSequence(header[4]) : 0;
+        String[] lineCounts = header.length == 6 ? header[5].split(",") : null;
+        if (lineCounts != null && lineCounts.length != count) throw new IOException("Invalid page header");
+        List<String> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int lines = lineCounts == null ? 1 : Math.max(1, (int) parseSequence(lineCounts[i]));
+            StringBuilder message = new StringBuilder();
+            for (int line = 0; line < lines; line++) {
+                String text = in.readLine();
+                if (text == null || in.readLine() == null) throw new IOException("Connection closed mid-page");
+                receivedSequence++;
+                if (line > 0) message.append('\n');
+                message.append(text);
+            }
+            messages.add(message.toString());
+        }
+        listener.onPage(channel, valid ? header[2] : "", first, messages);
+    }
+
+    private static long parseSequence(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Reconnects and resumes the session instead of logging in again; the server then resends
+    // whatever arrived after receivedSequence. Returns false once the session cannot be resumed
+    private boolean resumeSession() {
+        if (resumeToken == null) return false;
+        listener.onNotice("Connection lost, reconnecting...");
+        long delay = RESUME_FIRST_DELAY_MILLIS;
+        for (int attempt = 0; attempt < RESUME_ATTEMPTS && !closed; attempt++) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            delay = Math.min(delay * 2, RESUME_MAX_DELAY_MILLIS);
+            try {
+                socket.close();
+                Writer out = connect();
+                out.write(ChatServer.PAGING + "\n");
+                out.write(ChatServer.RESUME + " " + resumeToken + " " + receivedSequence + "\n");
+                out.flush();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(ChatServer.RESUMED)) {
+                        receivedSequence = Long.parseLong(line.substring(ChatServer.RESUMED.length()).trim());
+                        startWriter(out);
+                        listener.onNotice("Reconnected.");
+                        return true;
+                    }
+                    if (line.startsWith(ChatServer.RESUME_FAILED)) {
+                        resumeToken = null;
+                        listener.onNotice(line + " Please log in again.");
+                        return false;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Server still unreachable, or too busy; try again after the next delay, or
+                // once the server says it may have room
+                delay = Math.max(delay, retryAfterMillis(e.getMessage()));
+            }
+        }
+        return false;
+    }
+
+    // The wait a ChatServer.BUSY line asks for, or 0 for any other message.
+    private static long retryAfterMillis(String message) {
+        if (message == null || !message.startsWith(ChatServer.BUSY)) return 0;
+        String rest = message.substring(ChatServer.BUSY.length());
+        int space = rest.indexOf(' ');
+        try {
+            return Long.parseLong(space < 0 ? rest : rest.substring(0, space)) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void startWriter(Writer out) {
+        writer = Thread.ofVirtual().name("chat-writer").start(() -> writeLoop(out));
+    }
+
+    // Called by the reader once the socket is gone; anything the writer had taken but not
+    // flushed goes back to the front of the queue.
+    private void stopWriter() {
+        Thread current = writer;
+        if (current == null) return;
+        current.interrupt();
+        try {
+            current.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    private void writeLoop(Writer out) {
+        List<Outgoing> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outgoing.take());
+                outgoing.drainTo(batch, MAX_BATCH - 1);
+                for (Outgoing item : batch) {
+                    out.write(item.text);
+                }
+                out.flush();
+                for (Outgoing item : batch) {
+                    item.sent.complete(null);
+                }
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException e) {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                outgoing.addFirst(batch.get(i));
+            }
+        }
+    }
+
+    private static final class Outgoing {
+        final String text;
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        Outgoing(String text) {
+            this.text = text;
+        }
+    }
+}
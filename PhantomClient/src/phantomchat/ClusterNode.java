@@ -0,0 +1,445 @@
+package phantomchat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Full-mesh relay between ChatServer instances. Every node dials every configured peer and
+// only ever sends on that connection; what it receives arrives on the connections its peers
+// dialed, so each direction is a single ordered stream and no link needs deduplicating.
+//
+// A user belongs to the node they are connected to. Each node announces its own users and
+// their channels when a link comes up and then sends online/offline and join/part changes; if
+// a peer's link goes silent, the users it owned are dropped, each one's channels are told they
+// left, and nothing else is affected. Presence changes are idempotent, which is what makes
+// "clear the queue, then send a fresh snapshot" on reconnect safe.
+//
+// Links are authenticated both ways without the secret crossing the wire: the accepting node
+// sends a random challenge, the dialing node answers with an HMAC of it and its node id plus a
+// challenge of its own, and the accepting node answers that before anything else is sent.
+class ClusterNode {
+    interface Listener {
+        void onRemoteMessage(String channel, String message, boolean journaled);
+
+        void onRemoteUserOnline(String username, String nodeId);
+
+        void onRemoteUserOffline(String username);
+
+        // channelsByUser holds the channels each of the peer's users was in.
+        void onPeerDown(String nodeId, Map<String, Set<String>> channelsByUser);
+
+        // nodeId is the node the user registered on.
+        void onRemoteRegistration(String username, String passwordHash, String nodeId);
+    }
+
+    private static final byte HELLO = 1;
+    private static final byte HEARTBEAT = 2;
+    private static final byte USER_ONLINE = 3;
+    private static final byte USER_OFFLINE = 4;
+    private static final byte MESSAGE = 5;
+    private static final byte JOURNALED_MESSAGE = 6;
+    private static final byte USER_REGISTERED = 7;
+    private static final byte CHALLENGE = 8;
+    private static final byte WELCOME = 9;
+    private static final byte CHANNEL_JOINED = 10;
+    private static final byte CHANNEL_PARTED = 11;
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final int HEARTBEAT_MILLIS = 5000;
+    private static final int PEER_TIMEOUT_MILLIS = 3 * HEARTBEAT_MILLIS;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_RECONNECT_MILLIS = 5000;
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_FIELD_BYTES = 2 * BinaryProtocol.MAX_FRAME_LENGTH;
+
+    private final String nodeId;
+    private final String secret;
+    private final List<PeerLink> peers = new ArrayList<>();
+    private final Map<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final Map<String, Socket> inboundLinks = new ConcurrentHashMap<>();
+    private final Set<String> knownPeers = ConcurrentHashMap.newKeySet();
+    private final Supplier<Map<String, ? extends Collection<String>>> localUsers;
+    private final Listener listener;
+
+    // Only the peer's own reader adds or removes channels.
+    private static final class RemoteUser {
+        final String nodeId;
+        final Set<String> channels = ConcurrentHashMap.newKeySet();
+
+        RemoteUser(String nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+
+    // localUsers maps each local user to the channels they are in.
+    private ClusterNode(String nodeId, String secret, Supplier<Map<String, ? extends Collection<String>>> localUsers, Listener listener) {
+        this.nodeId = nodeId;
+        this.secret = secret;
+        this.localUsers = localUsers;
+        this.listener = listener;
+    }
+
+    // With no cluster port and no peers this is a standalone node: every call is a no-op.
+    static ClusterNode start(ServerConfig config, Supplier<Map<String, ? extends Collection<String>>> localUsers, Listener listener) throws IOException {
+        ClusterNode node = new ClusterNode(config.getNodeId(), config.getClusterSecret(), localUsers, listener);
+        if (config.getClusterPort() > 0) {
+            ServerSocket server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(config.getClusterAddress());
+            Thread.ofPlatform().name("cluster-accept").daemon().start(() -> node.acceptLoop(server));
+        }
+        for (InetSocketAddress address : config.getPeers()) {
+            PeerLink link = node.new PeerLink(address);
+            node.peers.add(link);
+            Thread.ofPlatform().name("cluster-out-" + address.getPort()).daemon().start(link::run);
+        }
+        return node;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    boolean isRemoteOnline(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    Collection<String> getRemoteUsers() {
+        return remoteUsers.keySet();
+    }
+
+    int getConnectedPeers() {
+        int connected = 0;
+        for (PeerLink peer : peers) {
+            if (peer.connected) connected++;
+        }
+        return connected;
+    }
+
+    // Call after the user is visible in localUsers.
+    void userOnline(String username) {
+        send(USER_ONLINE, username);
+    }
+
+    // Call after the user is gone from localUsers.
+    void userOffline(String username) {
+        send(USER_OFFLINE, username);
+    }
+
+    // Call after the user is in the channel, as seen through localUsers.
+    void channelJoined(String username, String channel) {
+        send(CHANNEL_JOINED, username, channel);
+    }
+
+    // Call after the user has left the channel.
+    void channelParted(String username, String channel) {
+        send(CHANNEL_PARTED, username, channel);
+    }
+
+    void userRegistered(String username, String passwordHash) {
+        send(USER_REGISTERED, username, passwordHash);
+    }
+
+    // One frame per peer, however many of the peer's users are in the channel.
+    void relay(String channel, String message, boolean journaled) {
+        send(journaled ? JOURNALED_MESSAGE : MESSAGE, channel, message);
+    }
+
+    private void send(byte type, String... fields) {
+        if (peers.isEmpty()) return;
+        byte[] frame = encode(type, fields);
+        for (PeerLink peer : peers) {
+            peer.enqueue(frame);
+        }
+    }
+
+    private static byte[] encode(byte type, String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            for (String field : fields) {
+                byte[] data = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_BYTES) {
+            throw new IOException("Invalid cluster field length: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static String newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        return HexFormat.of().formatHex(nonce);
+    }
+
+    // The role keeps a node's answer to a challenge from being replayed as a challenge of its own.
+    private String prove(byte role, String nonce, String id) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+            mac.update(role);
+            return HexFormat.of().formatHex(mac.doFinal((nonce + "\n" + id).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot compute cluster handshake HMAC", e);
+        }
+    }
+
+    private static boolean matches(String expected, String actual) {
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void acceptLoop(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                Thread.ofPlatform().name("cluster-in").daemon().start(() -> readLoop(socket));
+            } catch (IOException e) {
+                System.err.println("Error accepting cluster connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String peerId = null;
+        try (socket) {
+            socket.setSoTimeout(PEER_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            String challenge = newNonce();
+            out.write(encode(CHALLENGE, challenge));
+            out.flush();
+            if (in.readByte() != HELLO) {
+                throw new IOException("Expected cluster handshake");
+            }
+            String claimedId = readField(in);
+            String peerChallenge = readField(in);
+            if (!matches(prove(HELLO, challenge, claimedId), readField(in))) {
+                throw new IOException("Cluster authentication failed from " + socket.getRemoteSocketAddress());
+            }
+            out.write(encode(WELCOME, prove(WELCOME, peerChallenge, claimedId)));
+            out.flush();
+            peerId = claimedId;
+            Socket previous = inboundLinks.put(peerId, socket);
+            if (previous != null) {
+                // The peer reconnected before we noticed the old link die; its snapshot follows.
+                previous.close();
+                for (String username : dropUsersOf(peerId).keySet()) {
+                    listener.onRemoteUserOffline(username);
+                }
+            }
+            // Only the first link is news; reconnects show up as the disconnect before them.
+            if (knownPeers.add(peerId)) {
+                System.out.println("Cluster peer connected: " + peerId);
+            }
+
+            while (true) {
+                byte type = in.readByte();
+                ServerMetrics.Counter.CLUSTER_FRAMES_RECEIVED.increment();
+                switch (type) {
+                    case HEARTBEAT:
+                        break;
+                    case USER_ONLINE: {
+                        String username = readField(in);
+                        remoteUsers.put(username, new RemoteUser(peerId));
+                        listener.onRemoteUserOnline(username, peerId);
+                        break;
+                    }
+                    case USER_OFFLINE: {
+                        String username = readField(in);
+                        RemoteUser user = remoteUsers.get(username);
+                        if (user != null && user.nodeId.equals(peerId) && remoteUsers.remove(username, user)) {
+                            listener.onRemoteUserOffline(username);
+                        }
+                        break;
+                    }
+                    case CHANNEL_JOINED:
+                    case CHANNEL_PARTED: {
+                        String username = readField(in);
+                        String channel = readField(in);
+                        RemoteUser user = remoteUsers.get(username);
+                        if (user == null || !user.nodeId.equals(peerId)) break;
+                        if (type == CHANNEL_JOINED) {
+                            user.channels.add(channel);
+                        } else {
+                            user.channels.remove(channel);
+                        }
+                        break;
+                    }
+                    case MESSAGE:
+                    case JOURNALED_MESSAGE: {
+                        String channel = readField(in);
+                        listener.onRemoteMessage(channel, readField(in), type == JOURNALED_MESSAGE);
+                        break;
+                    }
+                    case USER_REGISTERED: {
+                        String username = readField(in);
+                        listener.onRemoteRegistration(username, readField(in), peerId);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown cluster frame type: " + type);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Cluster peer timed out: " + peerId);
+        } catch (EOFException e) {
+            if (peerId != null && inboundLinks.get(peerId) == socket) {
+                System.err.println("Cluster peer disconnected: " + peerId);
+            }
+        } catch (IOException e) {
+            if (peerId != null && inboundLinks.get(peerId) == socket) {
+                System.err.println("Cluster peer disconnected: " + peerId + " (" + e.getMessage() + ")");
+            } else if (peerId == null) {
+                System.err.println("Rejected cluster connection: " + e.getMessage());
+            }
+        }
+        if (peerId != null && inboundLinks.remove(peerId, socket)) {
+            listener.onPeerDown(peerId, dropUsersOf(peerId));
+        }
+    }
+
+    // Returns the dropped users with the channels each was in.
+    private Map<String, Set<String>> dropUsersOf(String peerId) {
+        Map<String, Set<String>> dropped = new HashMap<>();
+        for (Map.Entry<String, RemoteUser> entry : remoteUsers.entrySet()) {
+            RemoteUser user = entry.getValue();
+            if (user.nodeId.equals(peerId) && remoteUsers.remove(entry.getKey(), user)) {
+                dropped.put(entry.getKey(), user.channels);
+            }
+        }
+        return dropped;
+    }
+
+    // The sending half of the link to one peer: reconnects with backoff and heartbeats when idle.
+    private class PeerLink {
+        private final InetSocketAddress address;
+        private final String name;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private volatile boolean connected;
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+
+        // Frames for a peer that is down are dropped; the peer gets a fresh snapshot on reconnect.
+        void enqueue(byte[] frame) {
+            if (connected && !queue.offer(frame)) {
+                System.err.println("Cluster link to " + name + " is backed up; reconnecting");
+                connected = false;
+            }
+        }
+
+        void run() {
+            long backoff = 100;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    // Resolved on every attempt so a peer that moves is found again.
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(PEER_TIMEOUT_MILLIS);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    authenticate(new DataInputStream(new BufferedInputStream(socket.getInputStream())), out);
+                    queue.clear();
+                    connected = true;
+                    for (Map.Entry<String, ? extends Collection<String>> user : localUsers.get().entrySet()) {
+                        out.write(encode(USER_ONLINE, user.getKey()));
+                        for (String channel : user.getValue()) {
+                            out.write(encode(CHANNEL_JOINED, user.getKey(), channel));
+                        }
+                    }
+                    out.flush();
+                    backoff = 100;
+                    pump(out);
+                } catch (IOException e) {
+                    // Covered by the log line below and by the peer's own view of the link.
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (connected) {
+                    System.err.println("Lost cluster link to " + name);
+                }
+                connected = false;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_RECONNECT_MILLIS);
+            }
+        }
+
+        // Nothing is sent to the peer until it has proved it holds the secret too.
+        private void authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+            if (in.readByte() != CHALLENGE) {
+                throw new IOException("Expected cluster challenge");
+            }
+            String challenge = readField(in);
+            String ownChallenge = newNonce();
+            out.write(encode(HELLO, nodeId, ownChallenge, prove(HELLO, challenge, nodeId)));
+            out.flush();
+            byte answer;
+            try {
+                answer = in.readByte();
+            } catch (EOFException e) {
+                // The peer closes the link on a wrong answer.
+                answer = 0;
+            }
+            if (answer != WELCOME || !matches(prove(WELCOME, ownChallenge, nodeId), readField(in))) {
+                System.err.println("Cluster peer " + name + " failed authentication");
+                throw new IOException("Cluster authentication failed");
+            }
+        }
+
+        // Writes everything queued before each flush, so bursts share a single packet.
+        private void pump(DataOutputStream out) throws IOException, InterruptedException {
+            while (connected) {
+                byte[] frame = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    out.writeByte(HEARTBEAT);
+                } else {
+                    do {
+                        out.write(frame);
+                        ServerMetrics.Counter.CLUSTER_FRAMES_SENT.increment();
+                    } while ((frame = queue.poll()) != null);
+                }
+                out.flush();
+            }
+        }
+    }
+}
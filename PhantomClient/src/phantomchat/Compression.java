@@ -0,0 +1,116 @@
+package phantomchat;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Optional deflate for everything the server sends. A client opts in by sending MAGIC before
+// anything else, optionally followed by the binary handshake. The server answers with ACCEPTED,
+// or REFUSED when compression is off; everything after ACCEPTED is one raw deflate stream.
+//
+// Each connection keeps its own Deflater, so names and channel lines that repeat from message
+// to message compress against everything sent before. The stream is sync-flushed once per write
+// batch rather than per message, which keeps the flush marker from eating the savings on short
+// lines while still letting the client decode everything it has received. That history is also
+// why a broadcast is deflated once per recipient rather than once for all of them: the same
+// message compresses to different bytes in every stream, and only the stream's own Deflater
+// can produce them.
+class Compression {
+    static final byte[] MAGIC = {0, 'P', 'C', 'Z', 1};
+    static final byte[] ACCEPTED = MAGIC;
+    static final byte[] REFUSED = {0, 'P', 'C', 'Z', 0};
+
+    private static final int INFLATE_BUFFER_SIZE = 8192;
+    // Enough to hold a ChatServer.BUSY line.
+    private static final int MAX_SKIPPED_CHARS = 128;
+
+    private final Deflater deflater;
+
+    Compression(int level) {
+        deflater = new Deflater(level, true);
+    }
+
+    // Deflates buffers[from..count) into one buffer that ends on a flush boundary.
+    ByteBuffer compress(ByteBuffer[] buffers, int from, int count) {
+        long start = System.nanoTime();
+        long input = 0;
+        for (int i = from; i < count; i++) {
+            input += buffers[i].remaining();
+        }
+        ByteBuffer output = ByteBuffer.allocate((int) Math.min(input / 2 + 64, BinaryProtocol.MAX_FRAME_LENGTH));
+        for (int i = from; i < count; i++) {
+            deflater.setInput(buffers[i]);
+            while (!deflater.needsInput()) {
+                output = ensureSpace(output);
+                deflater.deflate(output, Deflater.NO_FLUSH);
+            }
+            buffers[i] = null;
+        }
+        // A sync flush is complete once it leaves space in the output.
+        do {
+            output = ensureSpace(output);
+            deflater.deflate(output, Deflater.SYNC_FLUSH);
+        } while (!output.hasRemaining());
+        output.flip();
+        ServerMetrics.Counter.COMPRESSION_INPUT_BYTES.add(input);
+        ServerMetrics.Counter.COMPRESSION_OUTPUT_BYTES.add(output.remaining());
+        ServerMetrics.Timer.COMPRESS.recordSince(start);
+        return output;
+    }
+
+    private static ByteBuffer ensureSpace(ByteBuffer output) {
+        if (output.hasRemaining()) return output;
+        ByteBuffer larger = ByteBuffer.allocate(output.capacity() * 2);
+        return larger.put(output.flip());
+    }
+
+    void end() {
+        deflater.end();
+    }
+
+    // Client side, after sending MAGIC: skips whatever the server sent before answering (the
+    // login menu goes out on connect) and returns the rest of the stream, inflated if accepted.
+    // A server too busy to admit the client closes instead, and its ChatServer.BUSY line
+    // becomes the exception's message.
+    static InputStream awaitAnswer(BufferedInputStream in) throws IOException {
+        int matched = 0;
+        StringBuilder skipped = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                String text = skipped.toString().trim();
+                throw new EOFException(text.startsWith(ChatServer.BUSY) ? text : "connection closed before compression handshake");
+            }
+            if (skipped.length() < MAX_SKIPPED_CHARS) skipped.append((char) b);
+            if (matched == MAGIC.length - 1) {
+                if (b == ACCEPTED[matched]) return new InflatingStream(in);
+                if (b == REFUSED[matched]) return in;
+                matched = 0;
+            }
+            if (b == (MAGIC[matched] & 0xFF)) {
+                matched++;
+            } else {
+                matched = b == MAGIC[0] ? 1 : 0;
+            }
+        }
+    }
+
+    private static class InflatingStream extends InflaterInputStream {
+        InflatingStream(InputStream in) {
+            super(in, new Inflater(true), INFLATE_BUFFER_SIZE);
+        }
+
+        // InflaterInputStream claims a byte is available until the end of the stream, so a
+        // reader that already holds a complete line would block trying to read ahead. The
+        // inflater only keeps input back when it has more output ready.
+        @Override
+        public int available() throws IOException {
+            return inf.needsInput() ? in.available() : 1;
+        }
+    }
+}
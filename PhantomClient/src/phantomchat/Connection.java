@@ -0,0 +1,292 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+
+abstract class Connection {
+    protected final SocketChannel channel;
+    protected final OutboundQueue outbound;
+    private final String remoteAddress;
+    private final int compressionLevel;
+    private WireProtocol protocol = new TextProtocol();
+    private boolean negotiated;
+    private boolean compressionRequested;
+    private final byte[] handshake = new byte[BinaryProtocol.MAGIC.length];
+    private int handshakeRead;
+    // The buffer after which output is compressed, until the drain path reaches it.
+    private volatile ByteBuffer compressionStart;
+    // Set once compression is accepted; from then on the engine may drain off its I/O thread.
+    private volatile boolean compressing;
+    private Compression compression;
+    private volatile long lastReadNanos = System.nanoTime();
+    private volatile long bytesWritten;
+    // Resume support, guarded by this: once a replay log is started every message is numbered
+    // and recorded. A detached connection's client has gone but may come back, so messages
+    // are still recorded but no longer written; after a hand-over they go to the successor.
+    private ReplayLog replayLog;
+    private volatile boolean detached;
+    private Connection successor;
+    // Guarded by this; see ChatServer.PAGING.
+    private boolean journalSequences;
+
+    // A compression level of zero refuses clients that ask for compression.
+    Connection(SocketChannel channel, OutboundQueue outbound, int compressionLevel) {
+        this(channel, outbound, compressionLevel, remoteAddressOf(channel));
+    }
+
+    // No socket at all: output only goes as far as the queue, e.g. in benchmarks.
+    protected Connection(OutboundQueue outbound, int compressionLevel) {
+        this(null, outbound, compressionLevel, "unknown");
+    }
+
+    private Connection(SocketChannel channel, OutboundQueue outbound, int compressionLevel, String remoteAddress) {
+        this.channel = channel;
+        this.outbound = outbound;
+        this.compressionLevel = compressionLevel;
+        this.remoteAddress = remoteAddress;
+    }
+
+    private static String remoteAddressOf(SocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    int getPendingMessages() {
+        return outbound.size();
+    }
+
+    long getPendingBytes() {
+        return outbound.pendingBytes();
+    }
+
+    // When bytes last arrived from the client, including heartbeat replies.
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    // Grows whenever the socket accepts output, so a stalled writer shows up as no change.
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    synchronized void send(String line) {
+        write(protocol.encodeLine(line));
+    }
+
+    synchronized void sendMessage(String channel, String message) {
+        if (successor != null) {
+            successor.sendMessage(channel, message);
+            return;
+        }
+        if (recordWhileAway(channel, message)) return;
+        write(protocol.encodeMessage(channel, message));
+    }
+
+    synchronized void sendMessage(SharedMessage shared) {
+        if (successor != null) {
+            successor.sendMessage(shared);
+            return;
+        }
+        if (journalSequences) {
+            shared = shared.withJournalSequence();
+        }
+        if (recordWhileAway(shared.channel, shared.message) || detached) return;
+        // Without a replay log nobody counts broadcasts, so a slow consumer may lose some.
+        queued(protocol.encodeShared(shared, outbound, replayLog == null));
+    }
+
+    // Only the line protocol has room for the sequence; binary frames ignore the request.
+    synchronized void sendJournalSequences() {
+        journalSequences = protocol instanceof TextProtocol;
+    }
+
+    synchronized boolean sendsJournalSequences() {
+        return journalSequences;
+    }
+
+    synchronized void sendMessages(String channel, List<String> messages) {
+        if (successor != null) {
+            successor.sendMessages(channel, messages);
+            return;
+        }
+        if (replayLog != null) {
+            long last = protocol.lastSequence();
+            for (String message : messages) {
+                last = record(channel, message, last);
+            }
+            if (detached) {
+                protocol.continueAfter(last);
+                return;
+            }
+        }
+        write(protocol.encodeMessages(channel, messages));
+    }
+
+    // Numbers the message into the replay log, if there is one. Returns true if the client is
+    // away, in which case the message is only recorded.
+    private boolean recordWhileAway(String channel, String message) {
+        if (replayLog == null) return false;
+        long last = record(channel, message, protocol.lastSequence());
+        if (!detached) return false;
+        protocol.continueAfter(last);
+        return true;
+    }
+
+    private long record(String channel, String message, long after) {
+        long last = after + protocol.sequenceLength(message);
+        replayLog.record(after + 1, last, channel, message);
+        return last;
+    }
+
+    synchronized void startReplayLog(int capacity) {
+        replayLog = new ReplayLog(capacity, protocol.lastSequence());
+    }
+
+    synchronized void attachReplayLog(ReplayLog log) {
+        replayLog = log;
+    }
+
+    synchronized void continueAfter(long sequence) {
+        protocol.continueAfter(sequence);
+    }
+
+    // The client has gone but may resume; keep numbering messages without writing them.
+    void detach() {
+        detached = true;
+    }
+
+    boolean isDetached() {
+        return detached;
+    }
+
+    // Gives this connection's replay log to next, where its client has resumed. Anything still
+    // addressed here is forwarded from now on; next's lock must already be held, so forwarded
+    // messages wait until whatever next resends first has been queued.
+    synchronized ReplayLog handOver(Connection next) {
+        detached = true;
+        successor = next;
+        ReplayLog log = replayLog;
+        replayLog = null;
+        return log;
+    }
+
+    // Called only from the connection's reader. Clients may open with Compression.MAGIC and
+    // then BinaryProtocol.MAGIC; anything else is treated as the line protocol.
+    void decode(ByteBuffer buffer, InboundListener listener) throws IOException {
+        lastReadNanos = System.nanoTime();
+        while (!negotiated && buffer.hasRemaining()) {
+            if (handshakeRead == 0 && buffer.get(buffer.position()) != 0) {
+                negotiated = true;
+                break;
+            }
+            handshake[handshakeRead++] = buffer.get();
+            if (handshakeRead < handshake.length) continue;
+            handshakeRead = 0;
+            if (!compressionRequested && Arrays.equals(handshake, Compression.MAGIC)) {
+                compressionRequested = true;
+                startCompression();
+            } else if (Arrays.equals(handshake, BinaryProtocol.MAGIC)) {
+                synchronized (this) {
+                    protocol = new BinaryProtocol();
+                    write(ByteBuffer.wrap(BinaryProtocol.MAGIC));
+                }
+                negotiated = true;
+            } else {
+                throw new IOException("Invalid protocol handshake");
+            }
+        }
+        if (negotiated) {
+            protocol.decode(buffer, listener);
+        }
+    }
+
+    private synchronized void startCompression() {
+        if (compressionLevel <= 0) {
+            write(ByteBuffer.wrap(Compression.REFUSED));
+            return;
+        }
+        ByteBuffer accepted = ByteBuffer.wrap(Compression.ACCEPTED);
+        compressionStart = accepted;
+        compressing = true;
+        write(accepted);
+    }
+
+    protected boolean isCompressing() {
+        return compressing;
+    }
+
+    // Called only from the engine's drain path, with a batch just taken from the outbound
+    // queue. Everything queued after the handshake answer is replaced by one deflated buffer;
+    // returns the new number of buffers in the batch.
+    protected int compress(ByteBuffer[] batch, int count) {
+        int from = 0;
+        if (compression == null) {
+            ByteBuffer start = compressionStart;
+            if (start == null) return count;
+            while (from < count && batch[from] != start) from++;
+            if (from == count) return count;
+            compressionStart = null;
+            compression = new Compression(compressionLevel);
+            from++;
+        }
+        if (from == count) return count;
+        batch[from] = compression.compress(batch, from, count);
+        return from + 1;
+    }
+
+    // Drain path only, after each socket write. messages counts what was queued, before any
+    // compression, and only once the write has finished them.
+    protected void recordWrite(int messages, long written) {
+        WriteStats.recordWrite(messages, written);
+        bytesWritten += written;
+    }
+
+    // Also drain path only; frees the deflater's native memory once the socket is closed.
+    protected void releaseCompression() {
+        if (compression != null) {
+            compression.end();
+            compression = null;
+        }
+    }
+
+    // Only enqueues; the engine's drain path does the socket write.
+    void write(ByteBuffer buffer) {
+        if (detached) return;
+        queued(outbound.offer(buffer, false));
+    }
+
+    // A slow consumer loses droppable buffers first. Numbered messages never are dropped: the
+    // connection is closed instead, and the client resumes from the replay log.
+    private void queued(boolean offered) {
+        if (!offered) {
+            System.err.println("Disconnecting slow consumer: " + remoteAddress);
+            ServerMetrics.Counter.SLOW_CONSUMER_DISCONNECTS.increment();
+            abort();
+            return;
+        }
+        scheduleDrain();
+    }
+
+    protected abstract void scheduleDrain();
+
+    // Flushes anything already written, then closes the socket.
+    abstract void close();
+
+    // Closes the socket immediately, discarding pending output.
+    abstract void abort();
+}
@@ -0,0 +1,109 @@
+package phantomchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Rate limits for what logged-in users send: one token bucket per user for every line, and
+// one per channel for the messages published to it, so a room stays usable even when many
+// members post at once. What happens to a line over the limit is the configured Action.
+class FloodControl {
+    enum Action { DELAY, DROP, DISCONNECT }
+
+    private static final int MAX_LISTED = 10;
+
+    private final double userRate;
+    private final int userBurst;
+    private final double channelRate;
+    private final int channelBurst;
+    private final Action action;
+    private final Map<String, TokenBucket> channelBuckets = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> throttledUsers = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> throttledChannels = new ConcurrentHashMap<>();
+
+    FloodControl(double userRate, int userBurst, double channelRate, int channelBurst, Action action) {
+        this.userRate = userRate;
+        this.userBurst = userBurst;
+        this.channelRate = channelRate;
+        this.channelBurst = channelBurst;
+        this.action = action;
+    }
+
+    Action getAction() {
+        return action;
+    }
+
+    // Null when per-user limits are off.
+    TokenBucket newUserBucket() {
+        return userRate > 0 ? new TokenBucket(userRate, userBurst) : null;
+    }
+
+    // Each returns 0 when the line may go now, else milliseconds until it may.
+    long acquireUser(TokenBucket bucket) {
+        return bucket == null ? 0 : bucket.tryAcquire();
+    }
+
+    long acquireChannel(String channel) {
+        if (channelRate <= 0) return 0;
+        TokenBucket bucket = channelBuckets.get(channel);
+        if (bucket == null) {
+            bucket = channelBuckets.computeIfAbsent(channel, name -> new TokenBucket(channelRate, channelBurst));
+        }
+        return bucket.tryAcquire();
+    }
+
+    // Called once the last member has left; a channel that comes back starts with a full bucket.
+    void forgetChannel(String channel) {
+        channelBuckets.remove(channel);
+    }
+
+    void recordThrottled(String username, String channel) {
+        throttledUsers.computeIfAbsent(username, name -> new LongAdder()).increment();
+        if (channel != null) {
+            throttledChannels.computeIfAbsent(channel, name -> new LongAdder()).increment();
+        }
+        switch (action) {
+            case DELAY:
+                ServerMetrics.Counter.FLOOD_DELAYED.increment();
+                break;
+            case DROP:
+                ServerMetrics.Counter.FLOOD_DROPPED.increment();
+                break;
+            default:
+                ServerMetrics.Counter.FLOOD_DISCONNECTS.increment();
+                break;
+        }
+    }
+
+    // Report for the /throttle admin command.
+    String summary() {
+        StringBuilder out = new StringBuilder(String.format(Locale.ROOT,
+                "Flood control: %s; per user %s; per channel %s",
+                action.name().toLowerCase(), limit(userRate, userBurst), limit(channelRate, channelBurst)));
+        out.append("\nMost throttled users: ").append(top(throttledUsers));
+        out.append("\nMost throttled channels: ").append(top(throttledChannels));
+        return out.toString();
+    }
+
+    private static String limit(double rate, int burst) {
+        return rate > 0 ? String.format(Locale.ROOT, "%.1f/s, burst %d", rate, burst) : "off";
+    }
+
+    private static String top(Map<String, LongAdder> counts) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            entries.add(Map.entry(entry.getKey(), entry.getValue().sum()));
+        }
+        if (entries.isEmpty()) return "none";
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < Math.min(MAX_LISTED, entries.size()); i++) {
+            if (i > 0) out.append(", ");
+            out.append(entries.get(i).getKey()).append(' ').append(entries.get(i).getValue());
+        }
+        return out.toString();
+    }
+}
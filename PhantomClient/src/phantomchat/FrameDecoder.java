@@ -0,0 +1,52 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+class FrameDecoder {
+    interface FrameHandler {
+        void onFrame(byte opcode, int channelId, long sequence, ByteBuffer payload) throws IOException;
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    // Payload buffers are slices of the decoder's own buffer and are only valid during the callback.
+    void decode(ByteBuffer buffer, FrameHandler handler) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), pending.remaining());
+            pending.put(pending.position(), buffer, buffer.position(), count);
+            pending.position(pending.position() + count);
+            buffer.position(buffer.position() + count);
+
+            pending.flip();
+            int needed = 0;
+            while (pending.remaining() >= Integer.BYTES) {
+                int start = pending.position();
+                int length = pending.getInt(start);
+                if (length < BinaryProtocol.FRAME_OVERHEAD || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (pending.remaining() < Integer.BYTES + length) {
+                    needed = Integer.BYTES + length;
+                    break;
+                }
+                byte opcode = pending.get(start + 4);
+                int channelId = pending.getInt(start + 5);
+                long sequence = pending.getLong(start + 9);
+                ByteBuffer payload = pending.slice(start + BinaryProtocol.HEADER_SIZE, length - BinaryProtocol.FRAME_OVERHEAD);
+                pending.position(start + Integer.BYTES + length);
+                handler.onFrame(opcode, channelId, sequence, payload);
+            }
+            pending.compact();
+
+            if (needed > pending.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+        }
+    }
+}
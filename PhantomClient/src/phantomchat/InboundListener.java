@@ -0,0 +1,7 @@
+package phantomchat;
+
+interface InboundListener {
+    void onLine(String line);
+
+    void onMessage(String channel, String message);
+}
@@ -0,0 +1,34 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+class LineDecoder {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private byte[] pending = new byte[256];
+    private int length;
+
+    void decode(ByteBuffer buffer, Consumer<String> lines) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && pending[end - 1] == '\r') end--;
+                lines.accept(new String(pending, 0, end, StandardCharsets.UTF_8));
+                length = 0;
+            } else {
+                if (length == MAX_LINE_LENGTH) {
+                    throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+                }
+                if (length == pending.length) {
+                    pending = Arrays.copyOf(pending, Math.min(pending.length * 2, MAX_LINE_LENGTH));
+                }
+                pending[length++] = b;
+            }
+        }
+    }
+}
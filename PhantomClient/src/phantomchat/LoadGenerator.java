@@ -0,0 +1,577 @@
+package phantomchat;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless stand-in for many ChatClient windows. Each simulated user registers (or logs in)
+// with the same exchange as ChatClient, joins one of the load channels and then publishes
+// timestamped pings at a fixed rate. Every ping that comes back on any connection is one
+// delivery; its latency is measured from the moment it was scheduled to be sent, so a
+// server that falls behind cannot hide the backlog by slowing the senders down.
+//
+// Runs against a server on the loopback interface only, e.g.
+//   java phantomchat.LoadGenerator --users=2000 --channels=20 --rate=2 --duration-seconds=60 --max-p99-ms=50
+// and exits with status 1 if any --max-*/--min-* gate is missed.
+public class LoadGenerator {
+    private static final String PASSWORD = "loadtest";
+    private static final String CHANNEL_PREFIX = "#load-";
+    private static final String PING = "ping";
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+    private static final int DRAIN_MILLIS = 2000;
+
+    enum Protocol { TEXT, BINARY }
+
+    enum AuthMode { REGISTER, LOGIN }
+
+    enum CompressionMode { OFF, ON }
+
+    private int port = 4670;
+    private int users = 100;
+    private int channels = 1;
+    private double rate = 1;
+    private int durationSeconds = 30;
+    private int connectConcurrency = 64;
+    private int messageSize;
+    private Protocol protocol = Protocol.TEXT;
+    private AuthMode authMode = AuthMode.REGISTER;
+    private CompressionMode compression = CompressionMode.OFF;
+    private String userPrefix = "lg" + Long.toString(ThreadLocalRandom.current().nextLong(36L * 36 * 36 * 36 * 36), 36) + "_";
+    private double maxP99Millis;
+    private double minThroughput;
+
+    private final String runId = Long.toHexString(System.nanoTime());
+    private final LatencyHistogram deliveryMicros = new LatencyHistogram();
+    private final LatencyHistogram authMicros = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicInteger authFailures = new AtomicInteger();
+    private final AtomicInteger disconnects = new AtomicInteger();
+    private volatile long measureStartNanos = Long.MAX_VALUE;
+    private volatile boolean stopping;
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator;
+        try {
+            generator = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    private static LoadGenerator parse(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            String key = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (key) {
+                case "port":
+                    generator.port = parsePositiveInt(key, value);
+                    break;
+                case "users":
+                    generator.users = parsePositiveInt(key, value);
+                    break;
+                case "channels":
+                    generator.channels = parsePositiveInt(key, value);
+                    break;
+                case "rate":
+                    generator.rate = parsePositiveDouble(key, value);
+                    break;
+                case "duration-seconds":
+                    generator.durationSeconds = parsePositiveInt(key, value);
+                    break;
+                case "connect-concurrency":
+                    generator.connectConcurrency = parsePositiveInt(key, value);
+                    break;
+                case "message-size":
+                    generator.messageSize = parsePositiveInt(key, value);
+                    break;
+                case "protocol":
+                    generator.protocol = parseEnum(Protocol.class, key, value);
+                    break;
+                case "auth":
+                    generator.authMode = parseEnum(AuthMode.class, key, value);
+                    break;
+                case "compression":
+                    generator.compression = parseEnum(CompressionMode.class, key, value);
+                    break;
+                case "user-prefix":
+                    if (!value.matches("^[a-zA-Z0-9_]+$")) {
+                        throw new IllegalArgumentException("--user-prefix may only contain letters, digits and underscores: " + value);
+                    }
+                    generator.userPrefix = value;
+                    break;
+                case "max-p99-ms":
+                    generator.maxP99Millis = parsePositiveDouble(key, value);
+                    break;
+                case "min-throughput":
+                    generator.minThroughput = parsePositiveDouble(key, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+        return generator;
+    }
+
+    private static int parsePositiveInt(String key, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("--" + key + " must be a positive integer: " + value);
+    }
+
+    private static double parsePositiveDouble(String key, String value) {
+        try {
+            double parsed = Double.parseDouble(value);
+            if (parsed > 0 && !Double.isInfinite(parsed)) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("--" + key + " must be a positive number: " + value);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String key, String value) {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for --" + key + ": " + value);
+        }
+    }
+
+    private boolean run() throws InterruptedException {
+        System.out.printf("Load test: %d users on %d channel(s), %s protocol%s, %.2f msg/s each, %d s%n",
+                users, channels, protocol.name().toLowerCase(),
+                compression == CompressionMode.ON ? " (compressed)" : "", rate, durationSeconds);
+
+        List<SimulatedUser> connected = connectAll();
+        if (connected.isEmpty()) {
+            System.out.println("No user could connect; nothing to measure.");
+            return false;
+        }
+
+        int[] members = new int[channels];
+        for (SimulatedUser user : connected) {
+            members[user.channelIndex]++;
+        }
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        measureStartNanos = start;
+        List<Thread> senders = new ArrayList<>(connected.size());
+        for (SimulatedUser user : connected) {
+            long firstSend = start + ThreadLocalRandom.current().nextLong(intervalNanos);
+            senders.add(Thread.ofVirtual().start(() -> user.sendLoop(firstSend, intervalNanos, end)));
+        }
+
+        long lastSent = 0, lastDelivered = 0;
+        for (int elapsed = REPORT_INTERVAL_SECONDS; elapsed < durationSeconds; elapsed += REPORT_INTERVAL_SECONDS) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(REPORT_INTERVAL_SECONDS));
+            long nowSent = sent.sum(), nowDelivered = delivered.sum();
+            System.out.printf("[%3ds] sent %,d/s, delivered %,d/s, p99 %.2f ms%n", elapsed,
+                    (nowSent - lastSent) / REPORT_INTERVAL_SECONDS, (nowDelivered - lastDelivered) / REPORT_INTERVAL_SECONDS,
+                    deliveryMicros.valueAtPercentile(99) / 1000.0);
+            lastSent = nowSent;
+            lastDelivered = nowDelivered;
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Thread.sleep(DRAIN_MILLIS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        stopping = true;
+        long expected = 0;
+        for (SimulatedUser user : connected) {
+            expected += user.sentCount * members[user.channelIndex];
+            user.shutdownInput();
+        }
+        boolean passed = report(seconds, expected);
+        for (SimulatedUser user : connected) {
+            user.reader.join(1000);
+            user.close();
+        }
+        return passed;
+    }
+
+    // Connects and authenticates every user, at most connectConcurrency at a time,
+    // and waits until each one has seen its own join on its load channel.
+    private List<SimulatedUser> connectAll() throws InterruptedException {
+        List<SimulatedUser> connected = new CopyOnWriteArrayList<>();
+        Semaphore permits = new Semaphore(connectConcurrency);
+        long start = System.nanoTime();
+        try (ExecutorService connector = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < users; i++) {
+                String username = userPrefix + i;
+                int channelIndex = i % channels;
+                permits.acquire();
+                connector.execute(() -> {
+                    try {
+                        SimulatedUser user = connect(username, channelIndex);
+                        if (user != null) connected.add(user);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Connected %,d of %,d users in %.2f s (%,.0f auth/s), %d failed%n",
+                connected.size(), users, seconds, connected.size() / seconds, users - connected.size());
+        System.out.printf("Connect+auth latency: p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms%n",
+                authMicros.valueAtPercentile(50) / 1000.0, authMicros.valueAtPercentile(99) / 1000.0,
+                authMicros.valueAtPercentile(99.9) / 1000.0, authMicros.getMax() / 1000.0);
+        return new ArrayList<>(connected);
+    }
+
+    private SimulatedUser connect(String username, int channelIndex) {
+        long start = System.nanoTime();
+        SimulatedUser user = null;
+        try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            if (compression == CompressionMode.ON) {
+                socket.getOutputStream().write(Compression.MAGIC);
+                input = Compression.awaitAnswer((BufferedInputStream) input);
+            }
+            user = protocol == Protocol.BINARY
+                    ? new BinaryUser(socket, input, username, channelIndex)
+                    : new TextUser(socket, input, username, channelIndex);
+            String failure = user.authenticate();
+            if (failure != null) {
+                if (authFailures.incrementAndGet() <= 5) {
+                    System.err.println(username + ": " + failure);
+                }
+                user.close();
+                return null;
+            }
+            authMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+
+            user.reader = Thread.ofVirtual().start(user::readLoop);
+            user.join();
+            if (!user.joined.await(30, TimeUnit.SECONDS) || user.disconnected) {
+                authFailures.incrementAndGet();
+                System.err.println(username + ": could not join " + user.channel);
+                user.close();
+                return null;
+            }
+            return user;
+        } catch (IOException e) {
+            if (authFailures.incrementAndGet() <= 5) {
+                System.err.println(username + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (user != null) user.close();
+        return null;
+    }
+
+    private boolean report(double seconds, long expected) {
+        long deliveredCount = delivered.sum();
+        double throughput = deliveredCount / seconds;
+        double p99 = deliveryMicros.valueAtPercentile(99) / 1000.0;
+
+        System.out.printf("Sent %,d messages, delivered %,d of %,d expected (%.2f%%), %,.0f msg/s delivered%n",
+                sent.sum(), deliveredCount, expected, expected == 0 ? 0 : 100.0 * deliveredCount / expected, throughput);
+        System.out.printf("Delivery latency: p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms, mean %.2f ms%n",
+                deliveryMicros.valueAtPercentile(50) / 1000.0, p99, deliveryMicros.valueAtPercentile(99.9) / 1000.0,
+                deliveryMicros.getMax() / 1000.0, deliveryMicros.getMean() / 1000.0);
+        if (disconnects.get() > 0) {
+            System.out.printf("%d connection(s) were closed by the server during the run%n", disconnects.get());
+        }
+
+        boolean passed = true;
+        if (maxP99Millis > 0 && p99 > maxP99Millis) {
+            System.out.printf(Locale.ROOT, "FAIL: p99 %.2f ms exceeds --max-p99-ms=%.2f%n", p99, maxP99Millis);
+            passed = false;
+        }
+        if (minThroughput > 0 && throughput < minThroughput) {
+            System.out.printf(Locale.ROOT, "FAIL: %.0f msg/s is below --min-throughput=%.0f%n", throughput, minThroughput);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private String pingText(long scheduledNanos) {
+        StringBuilder text = new StringBuilder(PING).append(' ').append(runId).append(' ').append(scheduledNanos);
+        if (text.length() < messageSize) {
+            text.append(' ');
+            while (text.length() < messageSize) text.append('x');
+        }
+        return text.toString();
+    }
+
+    // Records a delivery if the line is one of this run's pings, sent after measurement began;
+    // pings from earlier runs can still arrive through history replay on join.
+    private void onChatLine(String line) {
+        int marker = line.indexOf(": " + PING + " " + runId + " ");
+        if (marker < 0) return;
+        int start = marker + PING.length() + runId.length() + 4;
+        int end = line.indexOf(' ', start);
+        long scheduled;
+        try {
+            scheduled = Long.parseLong(end < 0 ? line.substring(start) : line.substring(start, end));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (scheduled < measureStartNanos) return;
+        delivered.increment();
+        deliveryMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+    }
+
+    // Prompts end in ": " and the menu is numbered; any other line before success is the reason for failure.
+    private static boolean isPrompt(String line) {
+        return line.endsWith(": ") || line.matches("^\\d+\\. .*");
+    }
+
+    private abstract class SimulatedUser {
+        final Socket socket;
+        final String username;
+        final int channelIndex;
+        final String channel;
+        final CountDownLatch joined = new CountDownLatch(1);
+        volatile boolean disconnected;
+        Thread reader;
+        long sentCount;
+
+        SimulatedUser(Socket socket, String username, int channelIndex) {
+            this.socket = socket;
+            this.username = username;
+            this.channelIndex = channelIndex;
+            this.channel = CHANNEL_PREFIX + channelIndex;
+        }
+
+        abstract void writeLines(String... lines) throws IOException;
+
+        abstract String readLine() throws IOException;
+
+        abstract void sendMessage(String text) throws IOException;
+
+        abstract void readLoop();
+
+        // Same exchange as ChatClient.attemptRegistration / attemptLogin, pipelined.
+        String authenticate() throws IOException {
+            if (authMode == AuthMode.REGISTER) {
+                writeLines("2", username, PASSWORD, PASSWORD);
+            } else {
+                writeLines("1", username, PASSWORD);
+            }
+            String response;
+            while ((response = readLine()) != null) {
+                if (response.contains("successful")) return null;
+                if (!isPrompt(response)) return response;
+            }
+            return "connection closed during authentication";
+        }
+
+        void join() throws IOException {
+            writeLines("/join " + channel);
+        }
+
+        void onLine(String line) {
+            if (line.equals(ChatServer.HEARTBEAT)) {
+                try {
+                    writeLines(ChatServer.HEARTBEAT_REPLY);
+                } catch (IOException ignored) {
+                    // The read loop sees the broken connection next.
+                }
+                return;
+            }
+            if (joined.getCount() > 0 && line.equals(username + " has joined " + channel + ".")) {
+                joined.countDown();
+                return;
+            }
+            onChatLine(line);
+        }
+
+        void sendLoop(long firstSend, long intervalNanos, long end) {
+            try {
+                for (long next = firstSend; next < end; next += intervalNanos) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    sendMessage(pingText(next));
+                    sentCount++;
+                    sent.increment();
+                }
+            } catch (IOException e) {
+                if (!stopping) disconnects.incrementAndGet();
+            }
+        }
+
+        void readFailed() {
+            disconnected = true;
+            if (!stopping) disconnects.incrementAndGet();
+            joined.countDown();
+        }
+
+        // Lets the reader see end-of-stream instead of a closed socket.
+        void shutdownInput() {
+            try {
+                socket.shutdownInput();
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private class TextUser extends SimulatedUser {
+        private final BufferedReader in;
+        private final Writer out;
+
+        TextUser(Socket socket, InputStream input, String username, int channelIndex) throws IOException {
+            super(socket, username, channelIndex);
+            in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        // Also called from the reader to answer heartbeats.
+        @Override
+        synchronized void writeLines(String... lines) throws IOException {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+            out.flush();
+        }
+
+        @Override
+        String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        void sendMessage(String text) throws IOException {
+            writeLines(channel, text);
+        }
+
+        // Every message is followed by its channel on a line of its own; channel lines never match a ping.
+        @Override
+        void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    onLine(line);
+                }
+            } catch (IOException ignored) {
+            }
+            readFailed();
+        }
+    }
+
+    private class BinaryUser extends SimulatedUser {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private volatile int channelId = -1;
+
+        BinaryUser(Socket socket, InputStream input, String username, int channelIndex) throws IOException {
+            super(socket, username, channelIndex);
+            in = new DataInputStream(input instanceof BufferedInputStream ? input : new BufferedInputStream(input));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(BinaryProtocol.MAGIC);
+            awaitMagic();
+        }
+
+        // The server may have sent the text menu before it saw the handshake.
+        private void awaitMagic() throws IOException {
+            out.flush();
+            int matched = 0;
+            while (matched < BinaryProtocol.MAGIC.length) {
+                int b = in.read();
+                if (b < 0) throw new EOFException("connection closed before binary handshake");
+                if (b == (BinaryProtocol.MAGIC[matched] & 0xFF)) {
+                    matched++;
+                } else {
+                    matched = b == BinaryProtocol.MAGIC[0] ? 1 : 0;
+                }
+            }
+        }
+
+        private void writeFrame(byte opcode, int id, String text) throws IOException {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(BinaryProtocol.FRAME_OVERHEAD + payload.length);
+            out.writeByte(opcode);
+            out.writeInt(id);
+            out.writeLong(0);
+            out.write(payload);
+        }
+
+        @Override
+        synchronized void writeLines(String... lines) throws IOException {
+            for (String line : lines) {
+                writeFrame(BinaryProtocol.OP_TEXT, 0, line);
+            }
+            out.flush();
+        }
+
+        // Only used before authentication completes, when every frame is a text line.
+        @Override
+        String readLine() throws IOException {
+            try {
+                int length = in.readInt();
+                in.readByte();
+                in.readInt();
+                in.readLong();
+                byte[] payload = new byte[length - BinaryProtocol.FRAME_OVERHEAD];
+                in.readFully(payload);
+                return new String(payload, StandardCharsets.UTF_8);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        synchronized void sendMessage(String text) throws IOException {
+            writeFrame(BinaryProtocol.OP_MESSAGE, channelId, text);
+            out.flush();
+        }
+
+        @Override
+        void readLoop() {
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    byte opcode = in.readByte();
+                    int id = in.readInt();
+                    in.readLong();
+                    byte[] payload = new byte[length - BinaryProtocol.FRAME_OVERHEAD];
+                    in.readFully(payload);
+                    String text = new String(payload, StandardCharsets.UTF_8);
+                    if (opcode == BinaryProtocol.OP_CHANNEL) {
+                        // The server names a channel before its first message, so the id is known before our join echo.
+                        if (text.equals(channel)) channelId = id;
+                    } else {
+                        onLine(text);
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+            readFailed();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Per-channel persistent chat history; see ChannelJournal for the on-disk layout. Each
+// channel's messages are also indexed for search as they are appended (see SearchIndex).
+// Channels are opened on first use and closed again once idle, so only the ones in use
+// hold mappings.
+class MessageJournal {
+    private static final long MAINTENANCE_INTERVAL_SECONDS = 60;
+    private static final long IDLE_CLOSE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    static class Entry {
+        final long sequence;
+        final long timestamp;
+        final String text;
+
+        Entry(long sequence, long timestamp, String text) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
+    // A channel's journal and search index, held open while the channel is in use.
+    private static final class Channel {
+        final ChannelJournal journal;
+        final SearchIndex index;
+        // Set under the channels map's lock for the key, so maintenance never closes a
+        // channel that has just been handed out.
+        long lastUsedNanos;
+
+        Channel(ChannelJournal journal, SearchIndex index) {
+            this.journal = journal;
+            this.index = index;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+    // Also writes and merges search index segments, so those never overlap with retention.
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("journal-maintenance").daemon().factory());
+
+    MessageJournal(Path directory, int segmentSize, long retentionBytes, long retentionMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+    }
+
+    static MessageJournal open(ServerConfig config) {
+        MessageJournal journal = new MessageJournal(Paths.get(config.getJournalDirectory()),
+                config.getJournalSegmentBytes(), config.getJournalRetentionBytes(), config.getJournalRetentionMillis());
+        journal.maintenance.scheduleWithFixedDelay(journal::maintain,
+                MAINTENANCE_INTERVAL_SECONDS, MAINTENANCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return journal;
+    }
+
+    // The only call that creates a channel's journal.
+    long append(String channel, String text) throws IOException {
+        Channel open = channel(channel, true);
+        // Held across both, so the index sees sequence numbers in order.
+        synchronized (open.journal) {
+            long sequence = open.journal.append(System.currentTimeMillis(), text);
+            open.index.add(sequence, text);
+            return sequence;
+        }
+    }
+
+    // The newest messages containing every term of the query, oldest first.
+    List<Entry> search(String channel, String query, int limit) throws IOException {
+        Channel open = channel(channel, false);
+        if (open == null) return List.of();
+        ChannelJournal journal = open.journal;
+        long[] sequences = open.index.search(query, limit, journal.firstSequence());
+        // Retention may have deleted some of them since the search
+        return journal.read(sequences);
+    }
+
+    // The channel's index is still catching up with its journal, so searches may miss older messages.
+    boolean isIndexing(String channel) {
+        Channel open = channels.get(channel);
+        return open != null && open.index.isCatchingUp();
+    }
+
+    List<Entry> readLast(String channel, int count) throws IOException {
+        Channel open = channel(channel, false);
+        if (open == null) return List.of();
+        return open.journal.read(Math.max(1, open.journal.lastSequence() - count + 1), count);
+    }
+
+    List<Entry> readSince(String channel, long afterSequence, int maxCount) throws IOException {
+        Channel open = channel(channel, false);
+        return open == null ? List.of() : open.journal.read(afterSequence + 1, maxCount);
+    }
+
+    // Up to count messages ending just before beforeSequence, oldest first.
+    List<Entry> readBefore(String channel, long beforeSequence, int count) throws IOException {
+        Channel open = channel(channel, false);
+        if (open == null) return List.of();
+        long from = Math.max(Math.max(1, open.journal.firstSequence()), beforeSequence - count);
+        if (from >= beforeSequence) return List.of();
+        List<Entry> entries = open.journal.read(from, (int) (beforeSequence - from));
+        // Retention may have moved the start past from meanwhile, and reading carries on from there.
+        entries.removeIf(entry -> entry.sequence >= beforeSequence);
+        return entries;
+    }
+
+    long lastSequence(String channel) throws IOException {
+        Channel open = channel(channel, false);
+        return open == null ? 0 : open.journal.lastSequence();
+    }
+
+    // The channel's journal and index, opened if need be. Unless create is set, a channel
+    // with nothing on disk is left alone and null is returned, so reading a channel that
+    // was never written to costs no directory, mapping or index.
+    private Channel channel(String channel, boolean create) throws IOException {
+        Path path = directory.resolve(channel.substring(1));
+        try {
+            return channels.compute(channel, (name, open) -> {
+                if (open == null) {
+                    try {
+                        if (!create && !ChannelJournal.exists(path)) return null;
+                        ChannelJournal journal = ChannelJournal.open(path, segmentSize);
+                        open = new Channel(journal, SearchIndex.open(path, journal, maintenance));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                open.lastUsedNanos = System.nanoTime();
+                return open;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void maintain() {
+        long minTimestamp = System.currentTimeMillis() - retentionMillis;
+        for (String name : channels.keySet()) {
+            if (closeIfIdle(name)) continue;
+            Channel open = channels.get(name);
+            if (open == null) continue;
+            ChannelJournal journal = open.journal;
+            try {
+                journal.flush();
+                journal.enforceRetention(retentionBytes, minTimestamp);
+            } catch (IOException e) {
+                System.err.println("Error maintaining message journal: " + e.getMessage());
+            }
+            // Keeps what a restart has to index again from the journal small.
+            open.index.freeze();
+            open.index.dropBefore(journal.firstSequence());
+        }
+    }
+
+    // Closes a channel nobody has read or written for IDLE_CLOSE_NANOS, once its index has
+    // nothing left to write; whatever its in-memory table held is indexed again on reopening.
+    private boolean closeIfIdle(String name) {
+        boolean[] closed = {false};
+        channels.computeIfPresent(name, (key, open) -> {
+            if (System.nanoTime() - open.lastUsedNanos < IDLE_CLOSE_NANOS || open.index.isWriting()) {
+                return open;
+            }
+            open.journal.close();
+            closed[0] = true;
+            return null;
+        });
+        return closed[0];
+    }
+}
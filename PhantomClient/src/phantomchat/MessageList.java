@@ -0,0 +1,206 @@
+package phantomchat;
+
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.ListCellRenderer;
+import javax.swing.SwingUtilities;
+import javax.swing.plaf.basic.BasicListUI;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+// The chat view. Unlike a text area, a list only lays out and paints the rows on screen, so
+// adding a message costs the same whether a hundred or two thousand are held. Rows wrap to
+// the viewport width.
+@SuppressWarnings("serial")
+class MessageList extends JList<ChannelHistory.Row> {
+    private static final int PADDING = 1;
+
+    private int measuredWidth;
+
+    MessageList() {
+        setCellRenderer(new RowRenderer());
+        setFocusable(false);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                remeasure();
+            }
+        });
+    }
+
+    @Override
+    public void updateUI() {
+        setUI(new RowListUI());
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    // Runs a change to the model without moving what the user is reading: pinned to the
+    // bottom if they were there, otherwise keeping the top visible row where it was.
+    void keepPosition(Runnable change) {
+        JViewport viewport = viewport();
+        if (viewport == null) {
+            change.run();
+            return;
+        }
+        Rectangle visible = viewport.getViewRect();
+        boolean following = visible.y + visible.height >= getHeight() - 1;
+        int top = locationToIndex(new Point(0, visible.y));
+        ChannelHistory.Row anchor = top >= 0 ? getModel().getElementAt(top) : null;
+        int offset = 0;
+        if (anchor != null) {
+            Rectangle bounds = getCellBounds(top, top);
+            if (bounds != null) offset = visible.y - bounds.y;
+        }
+        change.run();
+        ((JComponent) viewport.getParent()).validate();
+        if (following) {
+            scrollToBottom();
+            return;
+        }
+        int index = anchor == null || !(getModel() instanceof ChannelHistory)
+                ? -1 : ((ChannelHistory) getModel()).indexOf(anchor);
+        Rectangle bounds = index >= 0 ? getCellBounds(index, index) : null;
+        if (bounds != null) {
+            int y = Math.max(0, Math.min(bounds.y + offset, getHeight() - visible.height));
+            viewport.setViewPosition(new Point(0, y));
+        }
+    }
+
+    void scrollToBottom() {
+        JViewport viewport = viewport();
+        if (viewport == null) return;
+        ((JComponent) viewport.getParent()).validate();
+        int y = Math.max(0, getHeight() - viewport.getExtentSize().height);
+        viewport.setViewPosition(new Point(0, y));
+    }
+
+    private JViewport viewport() {
+        return SwingUtilities.getAncestorOfClass(JScrollPane.class, this) == null
+                ? null : (JViewport) getParent();
+    }
+
+    // JList caches row heights; toggling the fixed height is the public way to drop the cache
+    // once the width, and so the wrapping, has changed.
+    private void remeasure() {
+        int width = getWidth();
+        if (width <= 0 || width == measuredWidth) return;
+        measuredWidth = width;
+        keepPosition(() -> {
+            setFixedCellHeight(1);
+            setFixedCellHeight(-1);
+        });
+    }
+
+    private final class RowRenderer extends JComponent implements ListCellRenderer<ChannelHistory.Row> {
+        private String[] lines = new String[0];
+        private int height;
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends ChannelHistory.Row> list,
+                                                      ChannelHistory.Row row, int index,
+                                                      boolean selected, boolean focused) {
+            setFont(list.getFont());
+            height = measure(row, list, list.getFontMetrics(list.getFont()));
+            lines = row.lines;
+            return this;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(0, height);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(MessageList.this.getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            g.setColor(MessageList.this.getForeground() == null ? Color.BLACK : MessageList.this.getForeground());
+            g.setFont(getFont());
+            FontMetrics metrics = g.getFontMetrics();
+            int y = PADDING + metrics.getAscent();
+            for (String line : lines) {
+                g.drawString(line, PADDING, y);
+                y += metrics.getHeight();
+            }
+        }
+    }
+
+    // BasicListUI asks the renderer for every row's height whenever the model changes. Rows
+    // keep their height for the width they were wrapped to, so here that is a field read per
+    // row and only new rows, or all of them after a resize, are measured.
+    private static final class RowListUI extends BasicListUI {
+        @Override
+        protected void updateLayoutState() {
+            if (list.getFixedCellHeight() != -1) {
+                super.updateLayoutState();
+                return;
+            }
+            FontMetrics metrics = list.getFontMetrics(list.getFont());
+            int size = list.getModel().getSize();
+            cellHeights = new int[size];
+            for (int i = 0; i < size; i++) {
+                cellHeights[i] = measure((ChannelHistory.Row) list.getModel().getElementAt(i), list, metrics);
+            }
+            cellWidth = list.getWidth();
+            cellHeight = -1;
+        }
+    }
+
+    private static int measure(ChannelHistory.Row row, JList<?> list, FontMetrics metrics) {
+        int width = Math.max(1, list.getWidth() - 2 * PADDING);
+        if (row.lines == null || row.wrapWidth != width) {
+            row.lines = wrap(row.text, metrics, width);
+            row.wrapWidth = width;
+            row.height = row.lines.length * metrics.getHeight() + 2 * PADDING;
+        }
+        return row.height;
+    }
+
+    // Greedy word wrap; a word wider than the row is broken wherever it fills it.
+    static String[] wrap(String text, FontMetrics metrics, int width) {
+        List<String> lines = new ArrayList<>(1);
+        for (String paragraph : text.split("\n", -1)) {
+            if (metrics.stringWidth(paragraph) <= width) {
+                lines.add(paragraph);
+                continue;
+            }
+            int start = 0;
+            while (start < paragraph.length()) {
+                int end = start;
+                int lastSpace = -1;
+                int used = 0;
+                while (end < paragraph.length()) {
+                    used += metrics.charWidth(paragraph.charAt(end));
+                    if (used > width) break;
+                    if (paragraph.charAt(end) == ' ') lastSpace = end;
+                    end++;
+                }
+                if (end == paragraph.length()) {
+                    lines.add(paragraph.substring(start));
+                    break;
+                }
+                if (lastSpace > start) end = lastSpace;
+                if (end == start) end = start + 1;
+                lines.add(paragraph.substring(start, end));
+                start = end;
+                while (start < paragraph.length() && paragraph.charAt(start) == ' ') start++;
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,338 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+class NioServerEngine implements ServerEngine {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_EVENTS_PER_TURN = 64;
+    private static final int MAX_BATCH_MESSAGES = 64;
+
+    private final int workerCount;
+    private final ServerConfig config;
+    private final AdmissionControl admission;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    // Volatile for probe, which may be called before serve has started the pool.
+    private volatile ExecutorService workers;
+    private ScheduledExecutorService batchFlusher;
+
+    NioServerEngine(int workerCount, ServerConfig config, AdmissionControl admission) {
+        this.workerCount = workerCount;
+        this.config = config;
+        this.admission = admission;
+    }
+
+    // Queued behind the selector's pending tasks and then behind every event waiting for a
+    // worker, so both a busy selector and a deep worker queue show up as lag.
+    @Override
+    public void probe(Runnable task) {
+        ExecutorService pool = workers;
+        if (pool == null) {
+            task.run();
+        } else {
+            runOnSelector(() -> pool.execute(task));
+        }
+    }
+
+    @Override
+    public void serve(ServerSocketChannel serverChannel, Function<Connection, SessionHandler> handlerFactory) throws IOException {
+        selector = Selector.open();
+        workers = Executors.newFixedThreadPool(workerCount, Thread.ofPlatform().name("nio-worker-", 0).factory());
+        if (config.getBatchWindowNanos() > 0) {
+            batchFlusher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("batch-flusher").daemon().factory());
+        }
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        try {
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, handlerFactory);
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            if (batchFlusher != null) batchFlusher.shutdownNow();
+            selector.close();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Function<Connection, SessionHandler> handlerFactory) throws IOException {
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            if (!admission.admit(clientChannel)) continue;
+            clientChannel.configureBlocking(false);
+            NioConnection connection = new NioConnection(clientChannel, config.createOutboundQueue(), config.getCompressionLevel());
+            connection.key = clientChannel.register(selector, SelectionKey.OP_READ, connection);
+            connection.handler = handlerFactory.apply(connection);
+            connection.dispatch(connection.handler::onConnect);
+        }
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private class NioConnection extends Connection {
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean flushArmed = new AtomicBoolean();
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_MESSAGES];
+        private int batchStart;
+        private int batchEnd;
+        private int batchMessages;
+        // A compressing connection's batches are drained and deflated by encode on a worker,
+        // which publishes each one through encodedCount and encodedMessages for the selector
+        // to write. Held while encode runs, and for good once the connection is closed.
+        private final AtomicBoolean encoding = new AtomicBoolean();
+        private volatile int encodedCount;
+        private int encodedMessages;
+        private volatile boolean closed;
+        private final Queue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean processing = new AtomicBoolean();
+        private final AtomicBoolean disconnected = new AtomicBoolean();
+        private volatile boolean closeRequested;
+        private SelectionKey key;
+        private SessionHandler handler;
+        private final InboundListener dispatcher = new InboundListener() {
+            @Override
+            public void onLine(String line) {
+                dispatch(() -> handler.onLine(line));
+            }
+
+            @Override
+            public void onMessage(String channel, String message) {
+                dispatch(() -> handler.onMessage(channel, message));
+            }
+        };
+
+        NioConnection(SocketChannel channel, OutboundQueue outbound, int compressionLevel) {
+            super(channel, outbound, compressionLevel);
+        }
+
+        // Events for one connection run on the worker pool, but never concurrently.
+        void dispatch(Runnable event) {
+            inbound.add(event);
+            if (processing.compareAndSet(false, true)) {
+                workers.execute(this::processInbound);
+            }
+        }
+
+        private void processInbound() {
+            Runnable event;
+            int handled = 0;
+            while (handled++ < MAX_EVENTS_PER_TURN && (event = inbound.poll()) != null) {
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error handling client: " + e.getMessage());
+                }
+            }
+            processing.set(false);
+            if (!inbound.isEmpty() && processing.compareAndSet(false, true)) {
+                workers.execute(this::processInbound);
+            }
+        }
+
+        void handleRead() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read == -1) {
+                    closeNow();
+                    return;
+                }
+                readBuffer.flip();
+                decode(readBuffer, dispatcher);
+                readBuffer.clear();
+            } catch (IOException e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                closeNow();
+            }
+        }
+
+        void handleWrite() {
+            try {
+                while (true) {
+                    while (batchStart < batchEnd || fillBatch()) {
+                        long written = channel.write(batch, batchStart, batchEnd - batchStart);
+                        while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                            batch[batchStart++] = null;
+                        }
+                        recordWrite(batchStart == batchEnd ? batchMessages : 0, written);
+                        if (batchStart < batchEnd) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    writeScheduled.set(false);
+                    if (!hasOutput() || !writeScheduled.compareAndSet(false, true)) break;
+                }
+                if (closeRequested) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        private boolean fillBatch() {
+            batchStart = 0;
+            if (isCompressing()) {
+                batchEnd = encodedCount;
+                if (batchEnd > 0) {
+                    encodedCount = 0;
+                    batchMessages = encodedMessages;
+                    return true;
+                }
+                startEncode();
+                return false;
+            }
+            batchEnd = outbound.drainTo(batch);
+            batchMessages = outbound.drainedMessages();
+            return batchEnd > 0;
+        }
+
+        // Whether a write now would have anything to do. While encode runs, it asks for the
+        // write itself once it is done.
+        private boolean hasOutput() {
+            return isCompressing() ? encodedCount > 0 : !outbound.isEmpty();
+        }
+
+        // Deflating can take far longer than a write, so it is kept off the selector thread.
+        private void startEncode() {
+            if (!outbound.isEmpty() && encoding.compareAndSet(false, true)) {
+                workers.execute(this::encode);
+            }
+        }
+
+        // Worker only, and only while the selector has nothing of this connection's to write,
+        // so it has batch to itself until it publishes encodedCount.
+        private void encode() {
+            int count = 0;
+            try {
+                count = compress(batch, outbound.drainTo(batch));
+                encodedMessages = outbound.drainedMessages();
+            } catch (RuntimeException e) {
+                System.err.println("Error compressing output: " + e.getMessage());
+                abort();
+            }
+            encodedCount = count;
+            encoding.set(false);
+            if (closed) {
+                releaseEncoder();
+            } else if (count > 0 || !outbound.isEmpty()) {
+                requestWrite();
+            }
+        }
+
+        // Whoever takes encoding once the connection is closed frees what encode used, so
+        // that never happens under a running encode.
+        private void releaseEncoder() {
+            if (encoding.compareAndSet(false, true)) {
+                Arrays.fill(batch, null);
+                outbound.releaseDrained();
+                releaseCompression();
+            }
+        }
+
+        // With batching on, small writes wait up to the batch window so they can share a syscall.
+        @Override
+        protected void scheduleDrain() {
+            if (closeRequested || !isOpen()) return;
+            if (batchFlusher != null && outbound.pendingBytes() < config.getBatchBytes()) {
+                if (flushArmed.compareAndSet(false, true)) {
+                    batchFlusher.schedule(() -> {
+                        flushArmed.set(false);
+                        requestWrite();
+                    }, config.getBatchWindowNanos(), TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+            requestWrite();
+        }
+
+        private void requestWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                runOnSelector(() -> {
+                    if (key.isValid()) handleWrite();
+                });
+            }
+        }
+
+        @Override
+        void close() {
+            closeRequested = true;
+            outbound.close();
+            runOnSelector(() -> {
+                if (!key.isValid()) return;
+                if (batchStart == batchEnd && outbound.isEmpty()) closeNow();
+                else handleWrite();
+            });
+        }
+
+        @Override
+        void abort() {
+            closeRequested = true;
+            outbound.close();
+            outbound.clear();
+            runOnSelector(() -> {
+                if (key.isValid()) closeNow();
+            });
+        }
+
+        private void closeNow() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resources: " + e.getMessage());
+            }
+            outbound.close();
+            outbound.clear();
+            closed = true;
+            releaseEncoder();
+            batchStart = batchEnd = 0;
+            if (disconnected.compareAndSet(false, true)) {
+                dispatch(handler::onDisconnect);
+            }
+        }
+    }
+}
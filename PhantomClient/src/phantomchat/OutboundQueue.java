@@ -0,0 +1,329 @@
+package phantomchat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A connection's output waiting for the socket. Only buffers offered as droppable are ever
+// dropped by a full queue; handshake answers, replies and anything the client counts are
+// not, and when nothing droppable is left to make room the consumer is disconnected instead.
+class OutboundQueue {
+    enum SlowConsumerPolicy { DROP_OLDEST, DROP_NEWEST, DISCONNECT }
+
+    // A ring of parallel arrays rather than a deque of entries, so queueing a broadcast
+    // allocates nothing per recipient. Each slot holds either a buffer of this connection's
+    // own or a shared payload, with the binary sequence to write over its frame's, if any.
+    private ByteBuffer[] buffers = new ByteBuffer[16];
+    private PayloadArena.Payload[] payloads = new PayloadArena.Payload[16];
+    private long[] sequences = new long[16];
+    private boolean[] droppable = new boolean[16];
+    private int head;
+    private int size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private boolean closed;
+    private long pendingBytes;
+    // What the last drainTo handed out, kept referenced until it has been written. Views are
+    // per batch slot and only repointed while they stay on the same chunk, and binary headers
+    // are copied into headers, so draining shared payloads allocates nothing either.
+    private PayloadArena.Payload[] drained;
+    private int drainedCount;
+    private int drainedMessages;
+    private ByteBuffer[] views;
+    private PayloadArena.Chunk[] viewChunks;
+    private ByteBuffer headers;
+    private ByteBuffer[] headerViews;
+
+    OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Returns false when the queue is full and the consumer should be disconnected: the policy
+    // says so, or nothing that may be dropped is left to make room.
+    boolean offer(ByteBuffer buffer, boolean droppable) {
+        return add(buffer, null, 0, droppable);
+    }
+
+    // Like offer, for a payload that every recipient of a broadcast queues as is. The socket
+    // writes it straight from the arena, with sequence, unless 0, written over the sequence
+    // of the BinaryProtocol frame it holds.
+    boolean offerShared(PayloadArena.Payload payload, long sequence, boolean droppable) {
+        return add(null, payload, sequence, droppable);
+    }
+
+    private boolean add(ByteBuffer buffer, PayloadArena.Payload payload, long sequence, boolean canDrop) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (size >= capacity) {
+                if (policy == SlowConsumerPolicy.DISCONNECT) return false;
+                if (policy == SlowConsumerPolicy.DROP_NEWEST && canDrop) {
+                    ServerMetrics.Counter.OUTBOUND_DROPPED.increment();
+                    return true;
+                }
+                if (!dropOldest()) return false;
+            }
+            if (size == buffers.length) grow();
+            int slot = (head + size++) & (buffers.length - 1);
+            buffers[slot] = buffer;
+            payloads[slot] = payload;
+            sequences[slot] = sequence;
+            droppable[slot] = canDrop;
+            if (payload != null) {
+                payload.retain();
+                pendingBytes += payload.length;
+            } else {
+                pendingBytes += buffer.remaining();
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Doubles the ring, unwrapping it so the head is back at slot 0.
+    private void grow() {
+        int length = buffers.length;
+        buffers = unwrap(buffers, new ByteBuffer[length * 2]);
+        payloads = unwrap(payloads, new PayloadArena.Payload[length * 2]);
+        long[] longs = new long[length * 2];
+        boolean[] flags = new boolean[length * 2];
+        for (int i = 0; i < length; i++) {
+            longs[i] = sequences[(head + i) & (length - 1)];
+            flags[i] = droppable[(head + i) & (length - 1)];
+        }
+        sequences = longs;
+        droppable = flags;
+        head = 0;
+    }
+
+    private <T> T[] unwrap(T[] ring, T[] into) {
+        int tail = ring.length - head;
+        System.arraycopy(ring, head, into, 0, tail);
+        System.arraycopy(ring, 0, into, tail, head);
+        return into;
+    }
+
+    // The oldest droppable buffer is usually at the head, so the scan is short.
+    private boolean dropOldest() {
+        int mask = buffers.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) & mask;
+            if (!droppable[slot]) continue;
+            pendingBytes -= bytesAt(slot);
+            if (payloads[slot] != null) payloads[slot].release();
+            // Closes the gap by moving the older slots up one.
+            for (int j = i; j > 0; j--) {
+                int to = (head + j) & mask, from = (head + j - 1) & mask;
+                buffers[to] = buffers[from];
+                payloads[to] = payloads[from];
+                sequences[to] = sequences[from];
+                droppable[to] = droppable[from];
+            }
+            removeFirst();
+            ServerMetrics.Counter.OUTBOUND_DROPPED.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private long bytesAt(int slot) {
+        return payloads[slot] != null ? payloads[slot].length : buffers[slot].remaining();
+    }
+
+    private void removeFirst() {
+        buffers[head] = null;
+        payloads[head] = null;
+        head = (head + 1) & (buffers.length - 1);
+        size--;
+    }
+
+    // Moves up to target.length buffers into target and returns how many were moved. Shared
+    // payloads arrive as views that the next call repoints, so everything moved by one call
+    // must have been written before the next; see releaseDrained.
+    int drainTo(ByteBuffer[] target) {
+        lock.lock();
+        try {
+            releaseDrained();
+            if (drained == null || drained.length < target.length) {
+                drained = new PayloadArena.Payload[target.length];
+            }
+            int count = 0;
+            drainedMessages = 0;
+            while (size > 0) {
+                PayloadArena.Payload payload = payloads[head];
+                if (payload == null) {
+                    if (count == target.length) break;
+                    pendingBytes -= buffers[head].remaining();
+                    target[count++] = buffers[head];
+                } else {
+                    long sequence = sequences[head];
+                    // A binary frame goes out as this connection's header and the shared body.
+                    int skip = sequence == 0 ? 0 : BinaryProtocol.HEADER_SIZE;
+                    if (count + (skip == 0 ? 1 : 2) > target.length) break;
+                    if (skip != 0) {
+                        target[count] = header(target.length, count, payload, sequence);
+                        count++;
+                    }
+                    target[count] = view(target.length, count, payload, skip);
+                    count++;
+                    pendingBytes -= payload.length;
+                    drained[drainedCount++] = payload;
+                }
+                drainedMessages++;
+                removeFirst();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How many queued buffers and payloads the last drainTo moved; a binary broadcast takes
+    // two of its buffers.
+    int drainedMessages() {
+        lock.lock();
+        try {
+            return drainedMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gives back the payloads the last drainTo handed out. drainTo does this itself, so the
+    // drain path only calls it once it will not drain again, after its last write or after
+    // the socket is closed.
+    void releaseDrained() {
+        lock.lock();
+        try {
+            for (int i = 0; i < drainedCount; i++) {
+                drained[i].release();
+                drained[i] = null;
+            }
+            drainedCount = 0;
+            if (viewChunks == null) return;
+            // A view keeps its chunk's memory reachable, so it must not outlive the chunk's use.
+            for (int i = 0; i < viewChunks.length; i++) {
+                if (viewChunks[i] != null && viewChunks[i].isDiscarded()) {
+                    views[i] = null;
+                    viewChunks[i] = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The payload's bytes from skip on, through slot's view of its chunk.
+    private ByteBuffer view(int slots, int slot, PayloadArena.Payload payload, int skip) {
+        if (views == null || views.length < slots) {
+            views = views == null ? new ByteBuffer[slots] : Arrays.copyOf(views, slots);
+            viewChunks = viewChunks == null ? new PayloadArena.Chunk[slots] : Arrays.copyOf(viewChunks, slots);
+        }
+        if (viewChunks[slot] != payload.chunk) {
+            views[slot] = payload.chunk.view();
+            viewChunks[slot] = payload.chunk;
+        }
+        return views[slot].limit(payload.offset + payload.length).position(payload.offset + skip);
+    }
+
+    // A copy of the frame's header with this connection's sequence, in slot's part of headers.
+    private ByteBuffer header(int slots, int slot, PayloadArena.Payload payload, long sequence) {
+        if (headerViews == null || headerViews.length < slots) {
+            headers = ByteBuffer.allocateDirect(slots * BinaryProtocol.HEADER_SIZE);
+            headerViews = new ByteBuffer[slots];
+            for (int i = 0; i < slots; i++) {
+                headerViews[i] = headers.slice(i * BinaryProtocol.HEADER_SIZE, BinaryProtocol.HEADER_SIZE);
+            }
+        }
+        int at = slot * BinaryProtocol.HEADER_SIZE;
+        payload.copyTo(headers, at, BinaryProtocol.HEADER_SIZE);
+        headers.putLong(at + BinaryProtocol.SEQUENCE_OFFSET, sequence);
+        return headerViews[slot].clear();
+    }
+
+    // Blocks until a buffer is available; returns false once the queue is closed and drained.
+    boolean awaitPending() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (closed) return false;
+                notEmpty.await();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until at least thresholdBytes are queued, the deadline passes or the queue is closed.
+    void awaitBatch(long deadlineNanos, int thresholdBytes) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining;
+            while (!closed && pendingBytes < thresholdBytes && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                notEmpty.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long pendingBytes() {
+        lock.lock();
+        try {
+            return pendingBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rejects further offers; buffers already queued can still be drained.
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            // Only what is still queued; whatever drainTo handed out may be being written.
+            while (size > 0) {
+                if (payloads[head] != null) payloads[head].release();
+                removeFirst();
+            }
+            pendingBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
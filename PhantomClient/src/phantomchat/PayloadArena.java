@@ -0,0 +1,121 @@
+package phantomchat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct memory for broadcast payloads, handed out as ranges of large chunks so that each
+// payload costs a pointer bump instead of an allocateDirect call. Sockets write direct buffers
+// without first copying them into a temporary one, which would otherwise happen once per
+// recipient. Chunks are reference counted: the arena holds one while it fills a chunk, each
+// SharedMessage one while its broadcast runs, and each OutboundQueue one per queued payload
+// until its bytes are written or dropped. A chunk whose count drops to zero goes back on a free
+// list; one whose reference is never released is simply left to the GC.
+class PayloadArena {
+    private static final int CHUNK_SIZE = 256 * 1024;
+    // Larger payloads are rare and would waste most of a chunk, so they stay on the heap.
+    private static final int MAX_DIRECT_SIZE = CHUNK_SIZE / 16;
+    // Beyond this many idle chunks, released ones are left to the GC.
+    private static final int MAX_FREE_CHUNKS = 16;
+
+    static final class Chunk {
+        // Only ever written and read at absolute indexes, so it can be shared between threads.
+        private final ByteBuffer memory;
+        // Null for a heap payload's own chunk, which is never reused.
+        private final PayloadArena arena;
+        private final AtomicInteger references = new AtomicInteger(1);
+        // Set once the chunk will not be handed out again, so views of it should be let go.
+        private volatile boolean discarded;
+
+        private Chunk(ByteBuffer memory, PayloadArena arena) {
+            this.memory = memory;
+            this.arena = arena;
+            this.discarded = arena == null;
+        }
+
+        // A read-only view of the whole chunk, for OutboundQueue to point at its payloads.
+        ByteBuffer view() {
+            return memory.asReadOnlyBuffer();
+        }
+
+        boolean isDiscarded() {
+            return discarded;
+        }
+
+        private void retain() {
+            references.incrementAndGet();
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0 && arena != null) {
+                arena.recycle(this);
+            }
+        }
+    }
+
+    // A payload's place in its chunk. Whoever keeps one past the call that handed it over
+    // retains it, and releases it when done.
+    static final class Payload {
+        final Chunk chunk;
+        final int offset;
+        final int length;
+
+        private Payload(Chunk chunk, int offset, int length) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void retain() {
+            chunk.retain();
+        }
+
+        void release() {
+            chunk.release();
+        }
+
+        // Copies the first length bytes into target at index.
+        void copyTo(ByteBuffer target, int index, int length) {
+            target.put(index, chunk.memory, offset, length);
+        }
+    }
+
+    // Guarded by this.
+    private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+    private Chunk chunk = new Chunk(ByteBuffer.allocateDirect(CHUNK_SIZE), this);
+    private int used;
+
+    // A copy of bytes, with one reference held for the caller.
+    Payload copyOf(byte[] bytes) {
+        if (bytes.length > MAX_DIRECT_SIZE) {
+            return new Payload(new Chunk(ByteBuffer.wrap(bytes), null), 0, bytes.length);
+        }
+        Payload payload;
+        synchronized (this) {
+            if (CHUNK_SIZE - used < bytes.length) {
+                Chunk full = chunk;
+                Chunk next = free.pollFirst();
+                chunk = next != null ? next : new Chunk(ByteBuffer.allocateDirect(CHUNK_SIZE), this);
+                used = 0;
+                // May recycle it straight away if nothing queued from it is still waiting.
+                full.release();
+            }
+            chunk.retain();
+            payload = new Payload(chunk, used, bytes.length);
+            used += bytes.length;
+        }
+        payload.chunk.memory.put(payload.offset, bytes);
+        return payload;
+    }
+
+    private synchronized void recycle(Chunk released) {
+        if (free.size() >= MAX_FREE_CHUNKS) {
+            released.discarded = true;
+            return;
+        }
+        // Nobody holds a reference any more, so the count starts over as the arena's own. The
+        // most recently used chunk is handed out first.
+        released.references.set(1);
+        free.addFirst(released);
+    }
+}
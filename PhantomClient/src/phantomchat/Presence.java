@@ -0,0 +1,94 @@
+package phantomchat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+// Who is online, local and remote, as a versioned set. Every join or leave bumps the version
+// and goes into a bounded change log. The full "Online users: ..." line is an immutable
+// snapshot, built on first read after a change and then served to every reader until the
+// next one, so a burst of joins costs one rebuild. A client that already saw version V is
+// sent the net changes since V instead of the whole list.
+class Presence {
+    static final int LOG_CAPACITY = 4096;
+
+    static final class Snapshot {
+        final long version;
+        final int size;
+        final String line;
+
+        Snapshot(long version, int size, String line) {
+            this.version = version;
+            this.size = size;
+            this.line = line;
+        }
+    }
+
+    // Decides membership, so update() can be called for any user whose state may have changed.
+    private final Predicate<String> isOnline;
+    private final TreeSet<String> users = new TreeSet<>();
+    private final String[] logUsers = new String[LOG_CAPACITY];
+    private final boolean[] logJoined = new boolean[LOG_CAPACITY];
+    private volatile long version;
+    private volatile Snapshot snapshot = new Snapshot(0, 0, "Online users: ");
+
+    Presence(Predicate<String> isOnline) {
+        this.isOnline = isOnline;
+    }
+
+    // Brings the set in line with isOnline for this user; repeated calls are harmless.
+    synchronized void update(String username) {
+        boolean online = isOnline.test(username);
+        if (online ? users.add(username) : users.remove(username)) {
+            int slot = (int) (version % LOG_CAPACITY);
+            logUsers[slot] = username;
+            logJoined[slot] = online;
+            version++;
+        }
+    }
+
+    long version() {
+        return version;
+    }
+
+    Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current.version == version) return current;
+        synchronized (this) {
+            if (snapshot.version != version) {
+                StringBuilder line = new StringBuilder(16 + users.size() * 12).append("Online users: ");
+                for (String user : users) {
+                    line.append(user).append(' ');
+                }
+                snapshot = new Snapshot(version, users.size(), line.toString());
+            }
+            return snapshot;
+        }
+    }
+
+    // Net changes from one version to a later one, "+name" for joins and "-name" for leaves; a
+    // user who left and came back does not appear. Returns null when the log no longer reaches back.
+    synchronized List<String> changesBetween(long fromVersion, long toVersion) {
+        if (fromVersion > toVersion || toVersion > version || version - fromVersion > LOG_CAPACITY) return null;
+        Map<String, Boolean> net = new LinkedHashMap<>();
+        for (long v = fromVersion; v < toVersion; v++) {
+            int slot = (int) (v % LOG_CAPACITY);
+            String user = logUsers[slot];
+            Boolean previous = net.get(user);
+            // Entries alternate per user, so two in a row cancel out.
+            if (previous == null) {
+                net.put(user, logJoined[slot]);
+            } else {
+                net.remove(user);
+            }
+        }
+        List<String> changes = new ArrayList<>(net.size());
+        for (Map.Entry<String, Boolean> entry : net.entrySet()) {
+            changes.add((entry.getValue() ? "+" : "-") + entry.getKey());
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,85 @@
+package phantomchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The most recent messages delivered to one chat session, numbered the way its client counts
+// them (see WireProtocol.lastSequence), so a client that comes back with a resume token can be
+// sent exactly what it missed. Once full, the oldest entries are overwritten. The arrays start
+// small and grow to capacity, since most sessions never need their whole log.
+class ReplayLog {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int capacity;
+    private long[] firsts;
+    private long[] lasts;
+    private String[] channels;
+    private String[] messages;
+    private int head;
+    private int size;
+    private long lastSequence;
+
+    ReplayLog(int capacity, long lastSequence) {
+        this.capacity = capacity;
+        this.lastSequence = lastSequence;
+        int initial = Math.min(capacity, INITIAL_CAPACITY);
+        firsts = new long[initial];
+        lasts = new long[initial];
+        channels = new String[initial];
+        messages = new String[initial];
+    }
+
+    // A message takes the sequence numbers first..last; more than one for multi-line text.
+    synchronized void record(long first, long last, String channel, String message) {
+        if (size == firsts.length && size < capacity) {
+            // Only reached before the ring has wrapped, so head is still zero.
+            int grown = Math.min(capacity, size * 2);
+            firsts = Arrays.copyOf(firsts, grown);
+            lasts = Arrays.copyOf(lasts, grown);
+            channels = Arrays.copyOf(channels, grown);
+            messages = Arrays.copyOf(messages, grown);
+        }
+        int slot;
+        if (size < firsts.length) {
+            slot = size++;
+        } else {
+            slot = head;
+            head = (head + 1) % firsts.length;
+        }
+        firsts[slot] = first;
+        lasts[slot] = last;
+        channels[slot] = channel;
+        messages[slot] = message;
+        lastSequence = last;
+    }
+
+    synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    // Entries that end after sequence, oldest first. If the first one starts later than
+    // sequence + 1, the messages in between have already been overwritten.
+    synchronized List<Entry> since(long sequence) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % firsts.length;
+            if (lasts[slot] > sequence) {
+                entries.add(new Entry(firsts[slot], channels[slot], messages[slot]));
+            }
+        }
+        return entries;
+    }
+
+    static final class Entry {
+        final long first;
+        final String channel;
+        final String message;
+
+        Entry(long first, String channel, String message) {
+            this.first = first;
+            this.channel = channel;
+            this.message = message;
+        }
+    }
+}
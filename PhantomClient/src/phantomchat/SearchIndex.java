@@ -0,0 +1,727 @@
+package phantomchat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+// Inverted index over one channel's journal, mapping each term to the sequence numbers of
+// the messages containing it. New messages go into an in-memory table; once that holds
+// FLUSH_POSTINGS postings it is frozen and written out on the background thread as an
+// immutable segment file named after the sequence range it covers. The two newest segments
+// are merged while the older one is no larger than the newer, which keeps the number of
+// segments logarithmic. Segments are written whole and renamed into place, so whatever was
+// still in memory at a crash is simply indexed again from the journal on the next open. That
+// catch-up runs on the background thread; until it is done, searches only see what it has
+// reached so far.
+//
+// A segment is, per term in UTF-8 byte order, short length | term | skip entries | postings
+// as varint gaps from first - 1, then an int offset | int count table entry per term, then the
+// trailer: long first | long last | long postings | int terms | int table offset | int version |
+// int magic. Postings are decoded in blocks of SKIP_INTERVAL; the skip entry for each block
+// after the first holds the sequence before it and the block's offset into the postings, so a
+// lookup decodes one block rather than the whole list.
+class SearchIndex {
+    private static final int MAGIC = 0x50435358;
+    private static final int VERSION = 1;
+    private static final int TRAILER_SIZE = 3 * Long.BYTES + 4 * Integer.BYTES;
+    private static final int TABLE_ENTRY_SIZE = 2 * Integer.BYTES;
+    private static final int SKIP_INTERVAL = 128;
+    private static final int SKIP_ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int FLUSH_POSTINGS = 64 * 1024;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int CATCH_UP_BATCH = 1024;
+    private static final String SUFFIX = ".search";
+
+    private final Path directory;
+    private final Executor background;
+    // Guarded by this; frozen tables are no longer modified and wait to be written, oldest first.
+    private Table active;
+    private final List<Table> frozen = new ArrayList<>();
+    // Guarded by this; set while the catch-up still has journal messages to index.
+    private boolean catchingUp;
+    // Oldest first, covering consecutive sequence ranges. Replaced, never modified, and only
+    // by the background thread.
+    private volatile List<Segment> segments = List.of();
+
+    private SearchIndex(Path directory, Executor background) {
+        this.directory = directory;
+        this.background = background;
+    }
+
+    // Loads the channel's segments and leaves whatever the journal holds beyond them to the
+    // background thread, so opening a channel never waits on reading its journal. The journal
+    // must not be appended to until this returns.
+    static SearchIndex open(Path directory, ChannelJournal journal, Executor background) throws IOException {
+        SearchIndex index = new SearchIndex(directory, background);
+        long last = journal.lastSequence();
+        long indexed = index.loadSegments(journal.firstSequence(), last);
+        index.active = new Table(last + 1);
+        if (indexed < last) {
+            index.catchingUp = true;
+            Table table = new Table(indexed + 1);
+            index.frozen.add(table);
+            background.execute(() -> index.catchUp(journal, table, last));
+        }
+        return index;
+    }
+
+    // Background thread only. Fills the tables ahead of everything appended since the open,
+    // and lets them be written only once they reach last, so segments stay consecutive. The
+    // background thread runs one task at a time, so no writeFrozen can get in between.
+    private void catchUp(ChannelJournal journal, Table table, long last) {
+        long from = table.first;
+        int slot = 0;
+        try {
+            List<MessageJournal.Entry> entries;
+            while (from <= last
+                    && !(entries = journal.read(from, (int) Math.min(CATCH_UP_BATCH, last - from + 1))).isEmpty()) {
+                synchronized (this) {
+                    for (MessageJournal.Entry entry : entries) {
+                        if (table.postings >= FLUSH_POSTINGS) {
+                            table = new Table(table.last + 1);
+                            frozen.add(++slot, table);
+                        }
+                        for (String term : terms(entry.text)) {
+                            table.add(term, entry.sequence);
+                        }
+                        table.last = entry.sequence;
+                    }
+                }
+                from = entries.get(entries.size() - 1).sequence + 1;
+            }
+        } catch (IOException e) {
+            System.err.println("Error indexing message journal, messages up to " + last
+                    + " will not be found: " + e.getMessage());
+        }
+        synchronized (this) {
+            // Covers the rest even if the journal ended early, as the next table starts after last.
+            table.last = last;
+            catchingUp = false;
+        }
+        writeFrozen();
+    }
+
+    // Searches may miss older messages until this is false.
+    synchronized boolean isCatchingUp() {
+        return catchingUp;
+    }
+
+    // Sequences must arrive in increasing order.
+    synchronized void add(long sequence, String text) {
+        for (String term : terms(text)) {
+            active.add(term, sequence);
+        }
+        active.last = sequence;
+        if (active.postings >= FLUSH_POSTINGS) {
+            freeze();
+        }
+    }
+
+    // Moves the in-memory table to disk, even if it is not full yet.
+    synchronized void freeze() {
+        if (active.last < active.first) return;
+        frozen.add(active);
+        active = new Table(active.last + 1);
+        background.execute(this::writeFrozen);
+    }
+
+    // Frozen tables are still waiting to be written.
+    synchronized boolean isWriting() {
+        return !frozen.isEmpty();
+    }
+
+    // The newest messages that contain every term of the query, at most limit of them and
+    // none before minSequence. Sequences are returned oldest first.
+    long[] search(String query, int limit, long minSequence) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(terms(query)));
+        if (terms.isEmpty() || limit <= 0) return new long[0];
+        PostingList[] newest;
+        List<Table> waiting;
+        List<Segment> onDisk;
+        synchronized (this) {
+            newest = active.find(terms);
+            waiting = new ArrayList<>(frozen);
+            onDisk = segments;
+        }
+
+        // Sources cover disjoint ranges, so they are searched newest first until limit is met.
+        long[] found = new long[limit];
+        int count = collect(newest, found, 0, minSequence);
+        for (int i = waiting.size() - 1; i >= 0 && count < limit; i--) {
+            count = collect(waiting.get(i).find(terms), found, count, minSequence);
+        }
+        for (int i = onDisk.size() - 1; i >= 0 && count < limit && onDisk.get(i).last >= minSequence; i--) {
+            count = collect(onDisk.get(i).find(terms), found, count, minSequence);
+        }
+        return Arrays.copyOfRange(found, limit - count, limit);
+    }
+
+    // Walks one source's rarest list from the newest end, looking each sequence up in the
+    // others, and fills found from the back.
+    private static int collect(PostingList[] lists, long[] found, int count, long minSequence) {
+        if (lists == null) return count;
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+        PostingList rarest = lists[0];
+        for (int i = rarest.size() - 1; i >= 0 && count < found.length; i--) {
+            long sequence = rarest.get(i);
+            if (sequence < minSequence) break;
+            boolean everywhere = true;
+            for (int j = 1; j < lists.length && everywhere; j++) {
+                everywhere = lists[j].contains(sequence);
+            }
+            if (everywhere) {
+                found[found.length - 1 - count++] = sequence;
+            }
+        }
+        return count;
+    }
+
+    // Lower-cased runs of letters and digits; anything longer than MAX_TERM_LENGTH is skipped.
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.appendCodePoint(Character.toLowerCase(c));
+            } else if (term.length() > 0) {
+                if (term.length() <= MAX_TERM_LENGTH) terms.add(term.toString());
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return terms;
+    }
+
+    // Background thread only, like the rest of the segment maintenance.
+    private void writeFrozen() {
+        while (true) {
+            Table table;
+            synchronized (this) {
+                if (frozen.isEmpty()) break;
+                table = frozen.get(0);
+            }
+            Segment segment;
+            try {
+                segment = table.write(directory);
+            } catch (IOException e) {
+                // Stays searchable in memory; the next freeze tries again.
+                System.err.println("Error writing search index segment: " + e.getMessage());
+                return;
+            }
+            List<Segment> updated = new ArrayList<>(segments);
+            updated.add(segment);
+            synchronized (this) {
+                segments = List.copyOf(updated);
+                frozen.remove(0);
+            }
+            // After each one, as a catch-up may leave many tables waiting.
+            mergeSegments();
+        }
+    }
+
+    private void mergeSegments() {
+        while (true) {
+            List<Segment> current = segments;
+            int size = current.size();
+            if (size < 2) return;
+            Segment older = current.get(size - 2);
+            Segment newer = current.get(size - 1);
+            if (older.postings > newer.postings || older.bytes() + newer.bytes() > MAX_SEGMENT_BYTES) return;
+            Segment merged;
+            try {
+                merged = Segment.merge(directory, older, newer);
+            } catch (IOException e) {
+                System.err.println("Error merging search index segments: " + e.getMessage());
+                return;
+            }
+            List<Segment> updated = new ArrayList<>(current.subList(0, size - 2));
+            updated.add(merged);
+            segments = List.copyOf(updated);
+            // Searches still reading the old files keep their mappings after the delete.
+            older.delete();
+            newer.delete();
+        }
+    }
+
+    // Drops whole segments the journal no longer holds any messages for.
+    void dropBefore(long firstSequence) {
+        List<Segment> current = segments;
+        int dropped = 0;
+        while (dropped < current.size() - 1 && current.get(dropped).last < firstSequence) {
+            dropped++;
+        }
+        if (dropped == 0) return;
+        segments = List.copyOf(current.subList(dropped, current.size()));
+        for (Segment segment : current.subList(0, dropped)) {
+            segment.delete();
+        }
+    }
+
+    // Keeps the longest run of consecutive, readable segments that the journal still agrees
+    // with, deleting leftovers from an interrupted merge; returns the last sequence covered.
+    private long loadSegments(long journalFirstSequence, long journalLastSequence) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(directory, "*" + SUFFIX + "*")) {
+            for (Path file : found) {
+                if (file.getFileName().toString().endsWith(SUFFIX)) {
+                    files.add(file);
+                } else {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        // By first sequence, widest range first, so a merged segment hides the ones it replaced.
+        files.sort((a, b) -> {
+            long[] left = range(a), right = range(b);
+            return left[0] != right[0] ? Long.compare(left[0], right[0]) : Long.compare(right[1], left[1]);
+        });
+
+        List<Segment> loaded = new ArrayList<>();
+        long covered = 0;
+        for (Path file : files) {
+            long[] range = range(file);
+            if (range[1] <= covered) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            Segment segment = null;
+            boolean follows = loaded.isEmpty() ? range[0] <= journalFirstSequence : range[0] == covered + 1;
+            if (follows && range[1] <= journalLastSequence) {
+                segment = Segment.open(file);
+            }
+            if (segment == null) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            loaded.add(segment);
+            covered = segment.last;
+        }
+        segments = List.copyOf(loaded);
+        return covered;
+    }
+
+    // {first, last} from a segment's file name, or {-1, -1} if it is not one.
+    private static long[] range(Path file) {
+        String name = file.getFileName().toString();
+        int dash = name.indexOf('-');
+        try {
+            return new long[] {Long.parseLong(name.substring(0, dash)),
+                    Long.parseLong(name.substring(dash + 1, name.length() - SUFFIX.length()))};
+        } catch (RuntimeException e) {
+            return new long[] {-1, -1};
+        }
+    }
+
+    private static Path segmentPath(Path directory, long first, long last) {
+        return directory.resolve(String.format("%020d-%020d", first, last) + SUFFIX);
+    }
+
+    private interface PostingList {
+        int size();
+
+        // Ascending in i.
+        long get(int i);
+
+        boolean contains(long sequence);
+    }
+
+    private static final class Postings implements PostingList {
+        long[] sequences = new long[4];
+        int size;
+
+        Postings() {
+        }
+
+        Postings(long[] sequences, int size) {
+            this.sequences = sequences;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long get(int i) {
+            return sequences[i];
+        }
+
+        @Override
+        public boolean contains(long sequence) {
+            return Arrays.binarySearch(sequences, 0, size, sequence) >= 0;
+        }
+    }
+
+    // Covers first..last, including messages that had no terms.
+    private static final class Table {
+        final long first;
+        long last;
+        int postings;
+        final Map<String, Postings> terms = new HashMap<>();
+
+        Table(long first) {
+            this.first = first;
+            this.last = first - 1;
+        }
+
+        void add(String term, long sequence) {
+            Postings list = terms.computeIfAbsent(term, key -> new Postings());
+            if (list.size > 0 && list.sequences[list.size - 1] == sequence) return;
+            if (list.size == list.sequences.length) {
+                list.sequences = Arrays.copyOf(list.sequences, list.size * 2);
+            }
+            list.sequences[list.size++] = sequence;
+            postings++;
+        }
+
+        // Each term's postings as they are now, or null if some term does not occur.
+        PostingList[] find(List<String> query) {
+            PostingList[] lists = new PostingList[query.size()];
+            for (int i = 0; i < lists.length; i++) {
+                Postings list = terms.get(query.get(i));
+                if (list == null) return null;
+                // Later adds may grow the array, but never change what is below size.
+                lists[i] = new Postings(list.sequences, list.size);
+            }
+            return lists;
+        }
+
+        Segment write(Path directory) throws IOException {
+            byte[][] sorted = new byte[terms.size()][];
+            int i = 0;
+            for (String term : terms.keySet()) {
+                sorted[i++] = term.getBytes(StandardCharsets.UTF_8);
+            }
+            Arrays.sort(sorted, Arrays::compareUnsigned);
+            try (SegmentWriter writer = new SegmentWriter(directory, first, last, sorted.length)) {
+                for (byte[] term : sorted) {
+                    Postings list = terms.get(new String(term, StandardCharsets.UTF_8));
+                    writer.add(term, list.sequences, list.size);
+                }
+                return writer.finish();
+            }
+        }
+    }
+
+    private static final class SegmentWriter implements AutoCloseable {
+        private final Path path;
+        private final Path temp;
+        private final long first;
+        private final long last;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private int[] offsets;
+        private int[] counts;
+        private int terms;
+        private long postings;
+        private byte[] encoded = new byte[1024];
+        private long[] skips = new long[16];
+
+        SegmentWriter(Path directory, long first, long last, int expectedTerms) throws IOException {
+            this.path = segmentPath(directory, first, last);
+            this.temp = path.resolveSibling(path.getFileName() + ".tmp");
+            this.first = first;
+            this.last = last;
+            this.offsets = new int[Math.max(16, expectedTerms)];
+            this.counts = new int[offsets.length];
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+        }
+
+        void add(byte[] term, long[] sequences, int count) throws IOException {
+            if (terms == offsets.length) {
+                offsets = Arrays.copyOf(offsets, terms * 2);
+                counts = Arrays.copyOf(counts, terms * 2);
+            }
+            offsets[terms] = out.size();
+            counts[terms++] = count;
+            // Encoded first, since the skip entries that come before need the block offsets.
+            int length = 0;
+            int skipEntries = 0;
+            long previous = first - 1;
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && i % SKIP_INTERVAL == 0) {
+                    if (skipEntries * 2 == skips.length) skips = Arrays.copyOf(skips, skips.length * 2);
+                    skips[skipEntries * 2] = previous;
+                    skips[skipEntries * 2 + 1] = length;
+                    skipEntries++;
+                }
+                if (length + 10 > encoded.length) encoded = Arrays.copyOf(encoded, encoded.length * 2);
+                long gap = sequences[i] - previous;
+                previous = sequences[i];
+                while ((gap & ~0x7FL) != 0) {
+                    encoded[length++] = (byte) ((gap & 0x7F) | 0x80);
+                    gap >>>= 7;
+                }
+                encoded[length++] = (byte) gap;
+            }
+            out.writeShort(term.length);
+            out.write(term);
+            for (int i = 0; i < skipEntries; i++) {
+                out.writeLong(skips[i * 2]);
+                out.writeInt((int) skips[i * 2 + 1]);
+            }
+            out.write(encoded, 0, length);
+            postings += count;
+        }
+
+        Segment finish() throws IOException {
+            int tableOffset = out.size();
+            for (int i = 0; i < terms; i++) {
+                out.writeInt(offsets[i]);
+                out.writeInt(counts[i]);
+            }
+            out.writeLong(first);
+            out.writeLong(last);
+            out.writeLong(postings);
+            out.writeInt(terms);
+            out.writeInt(tableOffset);
+            out.writeInt(VERSION);
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Segment segment = Segment.open(path);
+            if (segment == null) throw new IOException("Segment " + path + " did not read back");
+            return segment;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final ByteBuffer buffer;
+        final long first;
+        final long last;
+        final long postings;
+        final int terms;
+        final int tableOffset;
+
+        private Segment(Path path, ByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            int trailer = buffer.capacity() - TRAILER_SIZE;
+            this.first = buffer.getLong(trailer);
+            this.last = buffer.getLong(trailer + 8);
+            this.postings = buffer.getLong(trailer + 16);
+            this.terms = buffer.getInt(trailer + 24);
+            this.tableOffset = buffer.getInt(trailer + 28);
+        }
+
+        // Null if the file is not a complete segment.
+        static Segment open(Path path) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < TRAILER_SIZE || size > MAX_SEGMENT_BYTES * 2) return null;
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int trailer = (int) size - TRAILER_SIZE;
+                if (buffer.getInt(trailer + 36) != MAGIC || buffer.getInt(trailer + 32) != VERSION) return null;
+                Segment segment = new Segment(path, buffer);
+                long[] named = range(path);
+                if (segment.first != named[0] || segment.last != named[1]
+                        || (long) segment.tableOffset + (long) segment.terms * TABLE_ENTRY_SIZE != trailer) {
+                    return null;
+                }
+                return segment;
+            } catch (IOException e) {
+                System.err.println("Error opening search index segment " + path + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        long bytes() {
+            return buffer.capacity();
+        }
+
+        // Each term's postings, decoded as they are read, or null if some term does not occur.
+        PostingList[] find(List<String> query) {
+            PostingList[] lists = new PostingList[query.size()];
+            for (int i = 0; i < lists.length; i++) {
+                int slot = slotOf(query.get(i).getBytes(StandardCharsets.UTF_8));
+                if (slot < 0) return null;
+                lists[i] = new SegmentPostings(this, slot);
+            }
+            return lists;
+        }
+
+        private int slotOf(byte[] term) {
+            int low = 0, high = terms - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int order = compare(buffer.getInt(tableOffset + mid * TABLE_ENTRY_SIZE), term);
+                if (order == 0) return mid;
+                if (order < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int offset, byte[] term) {
+            int length = buffer.getShort(offset) & 0xFFFF;
+            for (int i = 0, n = Math.min(length, term.length); i < n; i++) {
+                int order = (buffer.get(offset + 2 + i) & 0xFF) - (term[i] & 0xFF);
+                if (order != 0) return order;
+            }
+            return length - term.length;
+        }
+
+        byte[] term(int slot) {
+            int offset = buffer.getInt(tableOffset + slot * TABLE_ENTRY_SIZE);
+            byte[] term = new byte[buffer.getShort(offset) & 0xFFFF];
+            buffer.get(offset + 2, term);
+            return term;
+        }
+
+        int count(int slot) {
+            return buffer.getInt(tableOffset + slot * TABLE_ENTRY_SIZE + 4);
+        }
+
+        // Where the term's skip entries start.
+        int skipsOffset(int slot) {
+            int offset = buffer.getInt(tableOffset + slot * TABLE_ENTRY_SIZE);
+            return offset + 2 + (buffer.getShort(offset) & 0xFFFF);
+        }
+
+        // Decodes count postings starting at position, after previous, into sequences.
+        void decode(int position, long previous, long[] sequences, int count) {
+            for (int i = 0; i < count; i++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer.get(position++);
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                previous += gap;
+                sequences[i] = previous;
+            }
+        }
+
+        long[] postings(int slot) {
+            long[] sequences = new long[count(slot)];
+            int skipEntries = (sequences.length - 1) / SKIP_INTERVAL;
+            decode(skipsOffset(slot) + skipEntries * SKIP_ENTRY_SIZE, first - 1, sequences, sequences.length);
+            return sequences;
+        }
+
+        // Newer's range directly follows older's, so each term's postings are simply joined.
+        static Segment merge(Path directory, Segment older, Segment newer) throws IOException {
+            try (SegmentWriter writer = new SegmentWriter(directory, older.first, newer.last, older.terms + newer.terms)) {
+                int i = 0, j = 0;
+                while (i < older.terms || j < newer.terms) {
+                    byte[] left = i < older.terms ? older.term(i) : null;
+                    byte[] right = j < newer.terms ? newer.term(j) : null;
+                    int order = left == null ? 1 : right == null ? -1 : Arrays.compareUnsigned(left, right);
+                    if (order < 0) {
+                        long[] postings = older.postings(i++);
+                        writer.add(left, postings, postings.length);
+                    } else if (order > 0) {
+                        long[] postings = newer.postings(j++);
+                        writer.add(right, postings, postings.length);
+                    } else {
+                        long[] before = older.postings(i++);
+                        long[] after = newer.postings(j++);
+                        long[] joined = Arrays.copyOf(before, before.length + after.length);
+                        System.arraycopy(after, 0, joined, before.length, after.length);
+                        writer.add(left, joined, joined.length);
+                    }
+                }
+                return writer.finish();
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Error deleting search index segment " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // One term's postings in a segment; decodes and keeps one block at a time, which suits
+    // both walking the list from the newest end and looking up descending sequences.
+    private static final class SegmentPostings implements PostingList {
+        private final Segment segment;
+        private final int size;
+        private final int skips;
+        private final int blocks;
+        private final long[] block = new long[SKIP_INTERVAL];
+        private int current = -1;
+
+        SegmentPostings(Segment segment, int slot) {
+            this.segment = segment;
+            this.size = segment.count(slot);
+            this.skips = segment.skipsOffset(slot);
+            this.blocks = (size - 1) / SKIP_INTERVAL + 1;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long get(int i) {
+            load(i / SKIP_INTERVAL);
+            return block[i % SKIP_INTERVAL];
+        }
+
+        @Override
+        public boolean contains(long sequence) {
+            // The last block whose preceding sequence is below the one looked for.
+            int low = 1, high = blocks - 1, found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (base(mid) < sequence) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            load(found);
+            int length = Math.min(SKIP_INTERVAL, size - found * SKIP_INTERVAL);
+            return Arrays.binarySearch(block, 0, length, sequence) >= 0;
+        }
+
+        private long base(int blockIndex) {
+            return blockIndex == 0 ? segment.first - 1
+                    : segment.buffer.getLong(skips + (blockIndex - 1) * SKIP_ENTRY_SIZE);
+        }
+
+        private void load(int blockIndex) {
+            if (blockIndex == current) return;
+            int postings = skips + (blocks - 1) * SKIP_ENTRY_SIZE;
+            int position = blockIndex == 0 ? postings
+                    : postings + segment.buffer.getInt(skips + (blockIndex - 1) * SKIP_ENTRY_SIZE + Long.BYTES);
+            segment.decode(position, base(blockIndex), block, Math.min(SKIP_INTERVAL, size - blockIndex * SKIP_INTERVAL));
+            current = blockIndex;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package phantomchat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+class ServerConfig {
+    private static final int DEFAULT_PORT = 4670;
+
+    enum Engine { THREAD, VIRTUAL, NIO }
+
+    private int port = DEFAULT_PORT;
+    private Engine engine = Engine.NIO;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int maxPending = 1024;
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DROP_OLDEST;
+    private int batchWindowMillis;
+    private int batchBytes = 16 * 1024;
+    private int authThreads = Runtime.getRuntime().availableProcessors();
+    private int authQueue = 1024;
+    private String journalDirectory = "journal";
+    private int journalSegmentMegabytes = 8;
+    private int journalRetentionMegabytes = 256;
+    private int journalRetentionHours = 24 * 7;
+    private int replayCount = 50;
+    private int metricsPort = 9470;
+    private Set<String> admins = Set.of();
+    private String nodeId;
+    private int clusterPort;
+    private String clusterBind;
+    private List<InetSocketAddress> peers = List.of();
+    private String clusterSecret = "";
+    private int compressionLevel = 6;
+    private int heartbeatSeconds = 30;
+    private int idleTimeoutSeconds = 90;
+    private int authTimeoutSeconds = 60;
+    private int writeStallSeconds = 30;
+    private double userRate = 10;
+    private int userBurst = 20;
+    private double channelRate = 500;
+    private int channelBurst = 1000;
+    private FloodControl.Action floodAction = FloodControl.Action.DELAY;
+    private int resumeSeconds = 60;
+    private int resumeBuffer = 256;
+    private int maxConnections = 10000;
+    private int maxConnectionsPerAddress = 64;
+    private int maxPreAuth = 1024;
+    private int maxLagMillis = 500;
+    private int busyRetrySeconds = 5;
+
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            String key = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (key) {
+                case "port":
+                    config.port = parsePositiveInt(key, value);
+                    break;
+                case "engine":
+                    config.engine = parseEnum(Engine.class, key, value);
+                    break;
+                case "workers":
+                    config.workers = parsePositiveInt(key, value);
+                    break;
+                case "max-pending":
+                    config.maxPending = parsePositiveInt(key, value);
+                    break;
+                case "slow-consumer":
+                    config.slowConsumerPolicy = parseEnum(OutboundQueue.SlowConsumerPolicy.class, key, value);
+                    break;
+                case "batch-window-ms":
+                    config.batchWindowMillis = parseNonNegativeInt(key, value);
+                    break;
+                case "batch-bytes":
+                    config.batchBytes = parsePositiveInt(key, value);
+                    break;
+                case "auth-threads":
+                    config.authThreads = parsePositiveInt(key, value);
+                    break;
+                case "auth-queue":
+                    config.authQueue = parsePositiveInt(key, value);
+                    break;
+                case "journal-dir":
+                    config.journalDirectory = value;
+                    break;
+                case "journal-segment-mb":
+                    config.journalSegmentMegabytes = parsePositiveInt(key, value);
+                    break;
+                case "journal-retention-mb":
+                    config.journalRetentionMegabytes = parsePositiveInt(key, value);
+                    break;
+                case "journal-retention-hours":
+                    config.journalRetentionHours = parsePositiveInt(key, value);
+                    break;
+                case "replay":
+                    config.replayCount = parseNonNegativeInt(key, value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = parseNonNegativeInt(key, value);
+                    break;
+                case "node-id":
+                    config.nodeId = value;
+                    break;
+                case "cluster-port":
+                    config.clusterPort = parseNonNegativeInt(key, value);
+                    break;
+                case "cluster-bind":
+                    config.clusterBind = value;
+                    break;
+                case "peers":
+                    config.peers = parsePeers(key, value);
+                    break;
+                case "cluster-secret":
+                    config.clusterSecret = value;
+                    break;
+                case "compression-level":
+                    config.compressionLevel = parseNonNegativeInt(key, value);
+                    if (config.compressionLevel > 9) {
+                        throw new IllegalArgumentException("--" + key + " must be between 0 and 9: " + value);
+                    }
+                    break;
+                case "heartbeat-seconds":
+                    config.heartbeatSeconds = parseNonNegativeInt(key, value);
+                    break;
+                case "idle-timeout-seconds":
+                    config.idleTimeoutSeconds = parseNonNegativeInt(key, value);
+                    break;
+                case "auth-timeout-seconds":
+                    config.authTimeoutSeconds = parseNonNegativeInt(key, value);
+                    break;
+                case "write-stall-seconds":
+                    config.writeStallSeconds = parseNonNegativeInt(key, value);
+                    break;
+                case "user-rate":
+                    config.userRate = parseNonNegativeDouble(key, value);
+                    break;
+                case "user-burst":
+                    config.userBurst = parseBurst(key, value);
+                    break;
+                case "channel-rate":
+                    config.channelRate = parseNonNegativeDouble(key, value);
+                    break;
+                case "channel-burst":
+                    config.channelBurst = parseBurst(key, value);
+                    break;
+                case "flood-action":
+                    config.floodAction = parseEnum(FloodControl.Action.class, key, value);
+                    break;
+                case "resume-seconds":
+                    config.resumeSeconds = parseNonNegativeInt(key, value);
+                    break;
+                case "resume-buffer":
+                    config.resumeBuffer = parsePositiveInt(key, value);
+                    break;
+                case "max-connections":
+                    config.maxConnections = parseNonNegativeInt(key, value);
+                    break;
+                case "max-connections-per-address":
+                    config.maxConnectionsPerAddress = parseNonNegativeInt(key, value);
+                    break;
+                case "max-pre-auth":
+                    config.maxPreAuth = parseNonNegativeInt(key, value);
+                    break;
+                case "max-lag-ms":
+                    config.maxLagMillis = parseNonNegativeInt(key, value);
+                    break;
+                case "busy-retry-seconds":
+                    config.busyRetrySeconds = parsePositiveInt(key, value);
+                    break;
+                case "admins":
+                    config.admins = value.isBlank() ? Set.of() : Set.copyOf(Arrays.asList(value.trim().split("\\s*,\\s*")));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+        if ((config.clusterPort > 0 || !config.peers.isEmpty()) && config.clusterSecret.isEmpty()) {
+            throw new IllegalArgumentException("--cluster-secret is required with --cluster-port or --peers");
+        }
+        return config;
+    }
+
+    private static int parsePositiveInt(String key, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("--" + key + " must be a positive integer: " + value);
+    }
+
+    private static int parseNonNegativeInt(String key, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= 0) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("--" + key + " must be zero or a positive integer: " + value);
+    }
+
+    private static double parseNonNegativeDouble(String key, String value) {
+        try {
+            double parsed = Double.parseDouble(value);
+            if (parsed >= 0 && !Double.isInfinite(parsed)) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("--" + key + " must be zero or a positive number: " + value);
+    }
+
+    private static int parseBurst(String key, String value) {
+        int burst = parsePositiveInt(key, value);
+        if (burst > TokenBucket.MAX_BURST) {
+            throw new IllegalArgumentException("--" + key + " must be at most " + TokenBucket.MAX_BURST + ": " + value);
+        }
+        return burst;
+    }
+
+    private static List<InetSocketAddress> parsePeers(String key, String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        if (value.isBlank()) return peers;
+        for (String peer : value.trim().split("\\s*,\\s*")) {
+            int separator = peer.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("--" + key + " entries must be host:port: " + peer);
+            }
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, separator),
+                    parsePositiveInt(key, peer.substring(separator + 1))));
+        }
+        return peers;
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String key, String value) {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for --" + key + ": " + value);
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    Engine getEngine() {
+        return engine;
+    }
+
+    // Zero disables batching: queued messages are flushed as soon as the drain path runs.
+    long getBatchWindowNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+    }
+
+    int getBatchBytes() {
+        return batchBytes;
+    }
+
+    String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    int getJournalSegmentBytes() {
+        return journalSegmentMegabytes * 1024 * 1024;
+    }
+
+    // Per channel.
+    long getJournalRetentionBytes() {
+        return journalRetentionMegabytes * 1024L * 1024L;
+    }
+
+    long getJournalRetentionMillis() {
+        return TimeUnit.HOURS.toMillis(journalRetentionHours);
+    }
+
+    // Messages replayed when joining a channel; zero disables replay.
+    int getReplayCount() {
+        return replayCount;
+    }
+
+    // Zero disables the metrics endpoint.
+    int getMetricsPort() {
+        return metricsPort;
+    }
+
+    // Users allowed to run admin commands such as /stats.
+    Set<String> getAdmins() {
+        return admins;
+    }
+
+    // Must be unique within a cluster; defaults to one derived from the client port.
+    String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    // Zero means this node accepts no peer connections.
+    int getClusterPort() {
+        return clusterPort;
+    }
+
+    // Loopback unless set, so peers on other hosts need --cluster-bind.
+    InetSocketAddress getClusterAddress() {
+        return clusterBind == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), clusterPort)
+                : new InetSocketAddress(clusterBind, clusterPort);
+    }
+
+    List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    // Never empty once peers are configured; see ClusterNode for the handshake.
+    String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    // Deflate level for clients that ask for compression; zero refuses them.
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    // For each timeout below, zero disables it.
+
+    // Inbound silence after which a logged-in client is sent a heartbeat it must answer.
+    long getHeartbeatNanos() {
+        return TimeUnit.SECONDS.toNanos(heartbeatSeconds);
+    }
+
+    // Inbound silence after which a logged-in client is disconnected.
+    long getIdleTimeoutNanos() {
+        return TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    }
+
+    // Time allowed from connecting to finishing login or registration.
+    long getAuthTimeoutNanos() {
+        return TimeUnit.SECONDS.toNanos(authTimeoutSeconds);
+    }
+
+    // Time output may sit queued without the socket accepting a single byte.
+    long getWriteStallNanos() {
+        return TimeUnit.SECONDS.toNanos(writeStallSeconds);
+    }
+
+    // How often each connection's timeouts are checked: often enough to act within about
+    // half of the shortest timeout, capped so that idle servers stay quiet.
+    long getTimeoutCheckMillis() {
+        int shortest = Integer.MAX_VALUE;
+        for (int seconds : new int[]{heartbeatSeconds, idleTimeoutSeconds, authTimeoutSeconds, writeStallSeconds}) {
+            if (seconds > 0) shortest = Math.min(shortest, seconds);
+        }
+        return shortest == Integer.MAX_VALUE ? 0 : Math.min(5000, shortest * 500L);
+    }
+
+    // How long a dropped client's session is kept for it to resume; zero disables resume.
+    long getResumeMillis() {
+        return TimeUnit.SECONDS.toMillis(resumeSeconds);
+    }
+
+    // Messages kept per session for resending after a resume.
+    int getResumeBuffer() {
+        return resumeBuffer;
+    }
+
+    // Rates are messages per second; zero turns that limit off.
+    FloodControl createFloodControl() {
+        return new FloodControl(userRate, userBurst, channelRate, channelBurst, floodAction);
+    }
+
+    // Caps on open connections, on connections per source address other than loopback, on
+    // connections still logging in, and on engine lag before new connections are refused;
+    // zero turns that cap off.
+    AdmissionControl createAdmissionControl() {
+        return new AdmissionControl(maxConnections, maxConnectionsPerAddress, maxPreAuth,
+                TimeUnit.MILLISECONDS.toNanos(maxLagMillis), busyRetrySeconds);
+    }
+
+    Authenticator createAuthenticator() {
+        return new Authenticator(authThreads, authQueue);
+    }
+
+    OutboundQueue createOutboundQueue() {
+        return new OutboundQueue(maxPending, slowConsumerPolicy);
+    }
+
+    ServerEngine createEngine(AdmissionControl admission) {
+        switch (engine) {
+            case THREAD:
+                return new ThreadPerConnectionEngine(Thread.ofPlatform().name("client-handler-", 0).factory(), this, admission);
+            case VIRTUAL:
+                return new ThreadPerConnectionEngine(Thread.ofVirtual().name("client-handler-", 0).factory(), this, admission);
+            default:
+                return new NioServerEngine(workers, this, admission);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.function.Function;
+
+interface ServerEngine {
+    void serve(ServerSocketChannel serverChannel, Function<Connection, SessionHandler> handlerFactory) throws IOException;
+
+    // Runs task the way connection events are run, so the delay until it starts is the
+    // engine's lag. See AdmissionControl.
+    void probe(Runnable task);
+}
@@ -0,0 +1,198 @@
+package phantomchat;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process-wide instrumentation. Counters are LongAdders and timers are striped histograms,
+// so recording on the message path never takes a lock; all aggregation happens when the
+// metrics are read. Gauges are sampled from their owners at read time.
+class ServerMetrics {
+    private static final String PREFIX = "phantomchat_";
+    private static final int RATE_WINDOW_SECONDS = 10;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    enum Counter {
+        CONNECTIONS_ACCEPTED("connections_accepted_total", "Client connections accepted"),
+        CONNECTIONS_CLOSED("connections_closed_total", "Client connections closed"),
+        ADMISSION_OVERLOADED("admission_overloaded_total", "Connections refused while the engine was lagging"),
+        ADMISSION_FULL("admission_full_total", "Connections refused at the connection cap"),
+        ADMISSION_PRE_AUTH("admission_pre_auth_total", "Connections refused because too many were still logging in"),
+        ADMISSION_ADDRESS("admission_address_total", "Connections refused at the per-address cap"),
+        LOGINS("logins_total", "Successful logins"),
+        LOGIN_FAILURES("login_failures_total", "Failed login attempts"),
+        REGISTRATIONS("registrations_total", "Successful registrations"),
+        REGISTRATION_FAILURES("registration_failures_total", "Registrations rejected or failed at the store"),
+        MESSAGES_RECEIVED("messages_received_total", "Chat messages received from clients"),
+        MESSAGES_DELIVERED("messages_delivered_total", "Chat messages queued to recipients"),
+        OUTBOUND_DROPPED("outbound_dropped_total", "Outbound messages dropped by the slow-consumer policy"),
+        SLOW_CONSUMER_DISCONNECTS("slow_consumer_disconnects_total", "Connections closed by the slow-consumer policy"),
+        CLUSTER_FRAMES_SENT("cluster_frames_sent_total", "Frames sent to cluster peers"),
+        CLUSTER_FRAMES_RECEIVED("cluster_frames_received_total", "Frames received from cluster peers"),
+        COMPRESSION_INPUT_BYTES("compression_input_bytes_total", "Bytes passed to per-connection compression"),
+        COMPRESSION_OUTPUT_BYTES("compression_output_bytes_total", "Compressed bytes produced for the socket"),
+        HEARTBEATS_SENT("heartbeats_sent_total", "Heartbeats sent to silent clients"),
+        IDLE_DISCONNECTS("idle_disconnects_total", "Clients disconnected after going silent"),
+        AUTH_TIMEOUTS("auth_timeouts_total", "Connections closed for not finishing login in time"),
+        WRITE_STALL_DISCONNECTS("write_stall_disconnects_total", "Connections closed because the socket stopped accepting output"),
+        FLOOD_DELAYED("flood_delayed_total", "Lines held back by flood control"),
+        FLOOD_DROPPED("flood_dropped_total", "Lines dropped by flood control"),
+        FLOOD_DISCONNECTS("flood_disconnects_total", "Clients disconnected by flood control"),
+        SESSIONS_RESUMED("sessions_resumed_total", "Sessions resumed with a token instead of a login"),
+        RESUME_FAILURES("resume_failures_total", "Resume attempts with an unknown or expired token"),
+        RESUME_REPLAYED("resume_replayed_messages_total", "Messages resent to resumed sessions"),
+        RESUME_LOST("resume_lost_messages_total", "Messages a resumed session missed that were no longer buffered");
+
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+        private volatile double rate;
+        private long lastSample;
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long sum() {
+            return value.sum();
+        }
+
+        // Per second, over the last completed sampling window.
+        double rate() {
+            return rate;
+        }
+    }
+
+    enum Timer {
+        BROADCAST("broadcast_seconds", "Time to fan one message out to every member of a channel"),
+        PASSWORD_HASH("password_hash_seconds", "Time to hash one password"),
+        USER_LOOKUP("user_lookup_seconds", "Time to look up a stored password hash"),
+        USER_REGISTER("user_register_seconds", "Time until a new account is durable, including group-commit wait"),
+        USER_SYNC("user_sync_seconds", "Time spent in each user-log fsync"),
+        COMPRESS("compress_seconds", "Time to deflate and sync-flush one write batch"),
+        SEARCH("search_seconds", "Time to answer one /search, including reading the matches");
+
+        private final String name;
+        private final String help;
+        private final LatencyHistogram nanos = new LatencyHistogram();
+
+        Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        void recordSince(long startNanos) {
+            nanos.record(System.nanoTime() - startNanos);
+        }
+
+        LatencyHistogram histogram() {
+            return nanos;
+        }
+    }
+
+    private static class Gauge {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    static void registerGauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    // For monotonic values that another component already keeps.
+    static void registerCounter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    static void startRateSampler() {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("metrics-sampler").daemon().factory());
+        sampler.scheduleAtFixedRate(ServerMetrics::sampleRates,
+                RATE_WINDOW_SECONDS, RATE_WINDOW_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void sampleRates() {
+        for (Counter counter : Counter.values()) {
+            long current = counter.sum();
+            counter.rate = (double) (current - counter.lastSample) / RATE_WINDOW_SECONDS;
+            counter.lastSample = current;
+        }
+    }
+
+    // Prometheus text exposition format, version 0.0.4. Timers are exported as summaries.
+    static String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Counter counter : Counter.values()) {
+            header(out, counter.name, counter.help, "counter");
+            out.append(PREFIX).append(counter.name).append(' ').append(counter.sum()).append('\n');
+        }
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name, gauge.help, gauge.type);
+            out.append(PREFIX).append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        for (Timer timer : Timer.values()) {
+            LatencyHistogram histogram = timer.nanos;
+            header(out, timer.name, timer.help, "summary");
+            for (double quantile : QUANTILES) {
+                out.append(PREFIX).append(timer.name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.valueAtPercentile(quantile * 100))).append('\n');
+            }
+            out.append(PREFIX).append(timer.name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+            out.append(PREFIX).append(timer.name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    // Human-readable report for the /stats chat command.
+    static String summary() {
+        StringBuilder out = new StringBuilder("Server stats (rates over the last " + RATE_WINDOW_SECONDS + "s):");
+        for (Gauge gauge : gauges) {
+            out.append('\n').append(gauge.name).append(": ").append(gauge.value.getAsLong());
+        }
+        for (Counter counter : Counter.values()) {
+            out.append('\n').append(String.format(Locale.ROOT, "%s: %d (%.1f/s)",
+                    counter.name, counter.sum(), counter.rate()));
+        }
+        for (Timer timer : Timer.values()) {
+            LatencyHistogram histogram = timer.nanos;
+            out.append('\n').append(String.format(Locale.ROOT, "%s: n=%d p50=%.3fms p99=%.3fms max=%.3fms",
+                    timer.name, histogram.getCount(), histogram.valueAtPercentile(50) / 1e6,
+                    histogram.valueAtPercentile(99) / 1e6, histogram.getMax() / 1e6));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,7 @@
+package phantomchat;
+
+interface SessionHandler extends InboundListener {
+    void onConnect();
+
+    void onDisconnect();
+}
@@ -0,0 +1,65 @@
+package phantomchat;
+
+// One broadcast on its way to every member of a channel. Each wire protocol encodes it at most
+// once, on first use, and every recipient queues the same payload; see
+// OutboundQueue.offerShared. Only used by the thread running the broadcast, which releases it
+// once every recipient has queued it.
+final class SharedMessage {
+    private static final PayloadArena ARENA = new PayloadArena();
+
+    final String channel;
+    final String message;
+    // The message's number in the channel's journal, or 0 if it was not journaled.
+    final long journalSequence;
+    private int lines;
+    private int channelId;
+    private PayloadArena.Payload textPairs;
+    private PayloadArena.Payload binaryFrame;
+    private SharedMessage withSequence;
+
+    SharedMessage(String channel, String message, long journalSequence) {
+        this.channel = channel;
+        this.message = message;
+        this.journalSequence = journalSequence;
+    }
+
+    // The form sent to clients that asked for journal sequences: the sequence follows the
+    // channel name on its line. Shared by all such recipients like this one is by the rest.
+    SharedMessage withJournalSequence() {
+        if (journalSequence == 0) return this;
+        if (withSequence == null) {
+            withSequence = new SharedMessage(channel + " " + journalSequence, message, 0);
+        }
+        return withSequence;
+    }
+
+    int lineCount() {
+        if (lines == 0) lines = TextProtocol.lineCount(message);
+        return lines;
+    }
+
+    int channelId() {
+        if (channelId == 0) channelId = ChannelRegistry.idOf(channel);
+        return channelId;
+    }
+
+    PayloadArena.Payload textPairs() {
+        if (textPairs == null) textPairs = ARENA.copyOf(TextProtocol.pairs(channel, message));
+        return textPairs;
+    }
+
+    // The frame's sequence is left 0; each recipient's is written in as the frame is sent.
+    PayloadArena.Payload binaryFrame() {
+        if (binaryFrame == null) {
+            binaryFrame = ARENA.copyOf(BinaryProtocol.frame(BinaryProtocol.OP_MESSAGE, channelId(), 0, message));
+        }
+        return binaryFrame;
+    }
+
+    // Gives up the encodings' own references; recipients hold their own until written.
+    void release() {
+        if (textPairs != null) textPairs.release();
+        if (binaryFrame != null) binaryFrame.release();
+        if (withSequence != null) withSequence.release();
+    }
+}
@@ -0,0 +1,85 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+class TextProtocol implements WireProtocol {
+    private final LineDecoder decoder = new LineDecoder();
+    private long sequence;
+
+    @Override
+    public ByteBuffer encodeLine(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Text clients read a message line then a channel line, so multi-line
+    // messages go out as one pair per line.
+    @Override
+    public ByteBuffer encodeMessage(String channel, String message) {
+        sequence += lineCount(message);
+        return ByteBuffer.wrap(pairs(channel, message));
+    }
+
+    // Every recipient gets the same bytes, so they are shared rather than encoded again.
+    @Override
+    public boolean encodeShared(SharedMessage message, OutboundQueue out, boolean droppable) {
+        sequence += message.lineCount();
+        return out.offerShared(message.textPairs(), 0, droppable);
+    }
+
+    static byte[] pairs(String channel, String message) {
+        if (message.indexOf('\n') < 0) {
+            return (message + "\n" + channel + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        StringBuilder pairs = new StringBuilder(message.length() + 16 * channel.length());
+        appendPairs(pairs, channel, message);
+        return pairs.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public ByteBuffer encodeMessages(String channel, List<String> messages) {
+        StringBuilder pairs = new StringBuilder();
+        for (String message : messages) {
+            appendPairs(pairs, channel, message);
+            sequence += lineCount(message);
+        }
+        return ByteBuffer.wrap(pairs.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendPairs(StringBuilder pairs, String channel, String message) {
+        for (String line : message.split("\r?\n", -1)) {
+            pairs.append(line).append('\n').append(channel).append('\n');
+        }
+    }
+
+    @Override
+    public long lastSequence() {
+        return sequence;
+    }
+
+    @Override
+    public int sequenceLength(String message) {
+        return lineCount(message);
+    }
+
+    // One pair per line, matching the split in appendPairs.
+    static int lineCount(String message) {
+        int lines = 1;
+        for (int i = message.indexOf('\n'); i >= 0; i = message.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        return lines;
+    }
+
+    @Override
+    public void continueAfter(long sequence) {
+        this.sequence = sequence;
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer, InboundListener listener) throws IOException {
+        decoder.decode(buffer, listener::onLine);
+    }
+}
@@ -0,0 +1,130 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+class ThreadPerConnectionEngine implements ServerEngine {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_BATCH_MESSAGES = 64;
+
+    private final ThreadFactory threadFactory;
+    private final ServerConfig config;
+    private final AdmissionControl admission;
+
+    ThreadPerConnectionEngine(ThreadFactory threadFactory, ServerConfig config, AdmissionControl admission) {
+        this.threadFactory = threadFactory;
+        this.config = config;
+        this.admission = admission;
+    }
+
+    // There is no event loop here: virtual threads wait for a carrier, so the probe measures
+    // that, while with platform threads it measures how quickly a thread can be started.
+    @Override
+    public void probe(Runnable task) {
+        threadFactory.newThread(task).start();
+    }
+
+    @Override
+    public void serve(ServerSocketChannel serverChannel, Function<Connection, SessionHandler> handlerFactory) throws IOException {
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            if (!admission.admit(clientChannel)) continue;
+            BlockingConnection connection = new BlockingConnection(clientChannel, config);
+            SessionHandler handler = handlerFactory.apply(connection);
+            threadFactory.newThread(connection::drain).start();
+            threadFactory.newThread(() -> connection.run(handler)).start();
+        }
+    }
+
+    private static class BlockingConnection extends Connection {
+        private final long batchWindowNanos;
+        private final int batchBytes;
+
+        BlockingConnection(SocketChannel channel, ServerConfig config) {
+            super(channel, config.createOutboundQueue(), config.getCompressionLevel());
+            this.batchWindowNanos = config.getBatchWindowNanos();
+            this.batchBytes = config.getBatchBytes();
+        }
+
+        void run(SessionHandler handler) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            try {
+                handler.onConnect();
+                while (isOpen() && channel.read(buffer) != -1) {
+                    buffer.flip();
+                    decode(buffer, handler);
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                if (isOpen()) {
+                    System.err.println("Error handling client: " + e.getMessage());
+                }
+            } finally {
+                handler.onDisconnect();
+                close();
+            }
+        }
+
+        // Runs on its own thread so a slow reader only ever blocks itself. Whatever is
+        // queued goes out in one gathering write, optionally after waiting for the batch window.
+        void drain() {
+            ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_MESSAGES];
+            try {
+                while (outbound.awaitPending()) {
+                    if (batchWindowNanos > 0) {
+                        outbound.awaitBatch(System.nanoTime() + batchWindowNanos, batchBytes);
+                    }
+                    // This thread is the connection's own, so deflating here holds up nobody else.
+                    int count = compress(batch, outbound.drainTo(batch));
+                    int messages = outbound.drainedMessages();
+                    int start = 0;
+                    while (start < count) {
+                        long written = channel.write(batch, start, count - start);
+                        while (start < count && !batch[start].hasRemaining()) {
+                            batch[start++] = null;
+                        }
+                        recordWrite(start == count ? messages : 0, written);
+                    }
+                    // Written, so its payloads need not wait for the next message to be released.
+                    outbound.releaseDrained();
+                }
+            } catch (IOException e) {
+                outbound.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeChannel();
+                outbound.releaseDrained();
+                releaseCompression();
+            }
+        }
+
+        @Override
+        protected void scheduleDrain() {
+        }
+
+        @Override
+        void close() {
+            outbound.close();
+        }
+
+        @Override
+        void abort() {
+            outbound.close();
+            outbound.clear();
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resources: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package phantomchat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel: one thread, a ring of buckets and one small node per scheduled task,
+// so scheduling and cancelling are O(1) however many connections hold a timeout. A task lands
+// in the bucket its deadline hashes to, with the number of full turns still to wait. Deadlines
+// are only as precise as the tick, which is fine for timeouts measured in seconds.
+//
+// Tasks run on the wheel thread and must not block; hand anything slow to another executor.
+class TimingWheel {
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private long tick;
+
+    TimingWheel(long tickMillis, int buckets, String threadName) {
+        if (Integer.bitCount(buckets) != 1) {
+            throw new IllegalArgumentException("Bucket count must be a power of two: " + buckets);
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[buckets];
+        this.mask = buckets - 1;
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket();
+        }
+        Thread.ofPlatform().name(threadName).daemon().start(this::run);
+    }
+
+    // Safe from any thread; the task runs on the wheel thread no earlier than delayMillis from now.
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    // Approximate: read without synchronizing with the wheel thread.
+    int pendingCount() {
+        int count = scheduled.size();
+        for (Bucket bucket : wheel) {
+            count += bucket.size;
+        }
+        return count;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(now);
+            tick++;
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (timeout = scheduled.poll()) != null; i++) {
+            if (timeout.cancelled) continue;
+            long deadlineTick = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+            wheel[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        // The node is unlinked the next time the wheel passes its bucket.
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    // Doubly linked so expired and cancelled nodes unlink in O(1); touched only by the wheel thread.
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+        private int size;
+
+        void add(Timeout timeout) {
+            timeout.previous = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+            size++;
+        }
+
+        void expire(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                } else if (timeout.deadlineNanos <= now) {
+                    remove(timeout);
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Error in timer task: " + e.getMessage());
+                    }
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.previous = timeout.next = null;
+            size--;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package phantomchat;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// Lock-free token bucket. The whole state is one long updated by CAS: the token count in
+// thousandths of a token in the low bits, and the time of the last refill in milliseconds in
+// the rest. Checking never locks or allocates, so a bucket can sit on every message path.
+class TokenBucket {
+    private static final int TOKEN_BITS = 22;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE_TOKEN = 1000;
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(TokenBucket.class, "state", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static final int MAX_BURST = (int) (TOKEN_MASK / ONE_TOKEN);
+
+    // Thousandths of a token per millisecond is the same number as tokens per second.
+    private final double ratePerSecond;
+    private final long capacity;
+    private volatile long state;
+
+    TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1 || burst > MAX_BURST) {
+            throw new IllegalArgumentException("Invalid token bucket: rate " + ratePerSecond + ", burst " + burst);
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = burst * ONE_TOKEN;
+        this.state = pack(capacity, nowMillis());
+    }
+
+    // Takes a token and returns 0, or returns how many milliseconds until one will be available.
+    long tryAcquire() {
+        long now = nowMillis();
+        while (true) {
+            long current = state;
+            long last = current >>> TOKEN_BITS;
+            long tokens = current & TOKEN_MASK;
+            if (now > last) {
+                long gained = (long) ((now - last) * ratePerSecond);
+                if (tokens + gained >= capacity) {
+                    tokens = capacity;
+                    last = now;
+                } else {
+                    // Only the time the whole thousandths took is used up; the rest carries over,
+                    // or a slow bucket checked often would never refill.
+                    tokens += gained;
+                    last += Math.min(now - last, (long) Math.ceil(gained / ratePerSecond));
+                }
+            }
+            if (tokens < ONE_TOKEN) {
+                return Math.max(1, (long) Math.ceil((ONE_TOKEN - tokens) / ratePerSecond));
+            }
+            if (STATE.compareAndSet(this, current, pack(tokens - ONE_TOKEN, last))) {
+                return 0;
+            }
+        }
+    }
+
+    private static long pack(long tokens, long millis) {
+        return (millis << TOKEN_BITS) | tokens;
+    }
+
+    private static long nowMillis() {
+        return (System.nanoTime() - ORIGIN_NANOS) / 1_000_000;
+    }
+}
@@ -0,0 +1,183 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+// Open-addressing hash index over the users.txt snapshot, kept in <snapshot>.idx.
+// Each 8-byte slot holds a username hash and the offset (+1) of that user's line in
+// the snapshot; both files are memory-mapped, so lookups never load the whole store
+// onto the heap. The index is rebuilt whenever it does not match the snapshot it
+// describes, which is also how an existing text-only users.txt is migrated.
+class UserIndex {
+    private static final int MAGIC = 0x50435549;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 8;
+    private static final int MIN_SLOTS = 16;
+
+    private final MappedByteBuffer snapshot;
+    private final MappedByteBuffer slots;
+    private final int mask;
+    private final int count;
+
+    private UserIndex(MappedByteBuffer snapshot, MappedByteBuffer slots) {
+        this.snapshot = snapshot;
+        this.slots = slots;
+        this.mask = slots.getInt(8) - 1;
+        this.count = slots.getInt(12);
+    }
+
+    public static void main(String[] args) {
+        String snapshotFile = args.length > 0 ? args[0] : "users.txt";
+        try {
+            long start = System.nanoTime();
+            UserIndex index = build(Paths.get(snapshotFile));
+            System.out.println("Indexed " + index.size() + " users in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Error building user index: " + e.getMessage());
+        }
+    }
+
+    static Path indexPathFor(Path snapshotPath) {
+        return snapshotPath.resolveSibling(snapshotPath.getFileName() + ".idx");
+    }
+
+    static UserIndex open(Path snapshotPath) throws IOException {
+        Path indexPath = indexPathFor(snapshotPath);
+        if (Files.exists(indexPath)) {
+            MappedByteBuffer slots = map(indexPath);
+            if (slots.capacity() >= HEADER_SIZE &&
+                    slots.getInt(0) == MAGIC &&
+                    slots.getInt(4) == VERSION &&
+                    slots.getLong(16) == Files.size(snapshotPath) &&
+                    slots.getLong(24) == Files.getLastModifiedTime(snapshotPath).toMillis() &&
+                    slots.capacity() == HEADER_SIZE + (long) slots.getInt(8) * SLOT_SIZE) {
+                return new UserIndex(map(snapshotPath), slots);
+            }
+        }
+        System.out.println("Rebuilding user index for " + snapshotPath.getFileName() + "...");
+        return build(snapshotPath);
+    }
+
+    static UserIndex build(Path snapshotPath) throws IOException {
+        MappedByteBuffer snapshot = map(snapshotPath);
+        int length = snapshot.capacity();
+
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (snapshot.get(i) == '\n') lines++;
+        }
+        int slotCount = Math.max(MIN_SLOTS, Integer.highestOneBit(Math.max(1, lines * 2 - 1)) << 1);
+
+        Path indexPath = indexPathFor(snapshotPath);
+        Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+            int mask = slotCount - 1;
+            int lineStart = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i < length && snapshot.get(i) != '\n') continue;
+                String key = parseKey(snapshot, lineStart, i);
+                if (key != null) {
+                    int hash = spread(key.hashCode());
+                    int slot = hash & mask;
+                    while (true) {
+                        int offset = slots.getInt(slotOffset(slot) + 4);
+                        if (offset == 0) {
+                            count++;
+                            break;
+                        }
+                        // A later line for the same user replaces the earlier one, as it did in loadUsers.
+                        if (slots.getInt(slotOffset(slot)) == hash && key.equals(parseKey(snapshot, offset - 1, lineEnd(snapshot, offset - 1)))) {
+                            break;
+                        }
+                        slot = (slot + 1) & mask;
+                    }
+                    slots.putInt(slotOffset(slot), hash);
+                    slots.putInt(slotOffset(slot) + 4, lineStart + 1);
+                }
+                lineStart = i + 1;
+            }
+            slots.putInt(0, MAGIC)
+                    .putInt(4, VERSION)
+                    .putInt(8, slotCount)
+                    .putInt(12, count)
+                    .putLong(16, length)
+                    .putLong(24, Files.getLastModifiedTime(snapshotPath).toMillis());
+            slots.force();
+        }
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new UserIndex(snapshot, map(indexPath));
+    }
+
+    String lookup(String username) {
+        int hash = spread(username.hashCode());
+        int slot = hash & mask;
+        while (true) {
+            int offset = slots.getInt(slotOffset(slot) + 4);
+            if (offset == 0) return null;
+            if (slots.getInt(slotOffset(slot)) == hash) {
+                int start = offset - 1;
+                String[] parts = parseLine(snapshot, start, lineEnd(snapshot, start));
+                if (parts != null && parts[0].equals(username)) {
+                    return parts[1];
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    boolean contains(String username) {
+        return lookup(username) != null;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int lineEnd(ByteBuffer snapshot, int start) {
+        int end = start;
+        while (end < snapshot.capacity() && snapshot.get(end) != '\n') end++;
+        return end;
+    }
+
+    private static String parseKey(ByteBuffer snapshot, int start, int end) {
+        String[] parts = parseLine(snapshot, start, end);
+        return parts == null ? null : parts[0];
+    }
+
+    // Same rules as the original loadUsers: exactly one ':' separator, both sides trimmed.
+    private static String[] parseLine(ByteBuffer snapshot, int start, int end) {
+        byte[] line = new byte[end - start];
+        snapshot.get(start, line);
+        String[] parts = new String(line, StandardCharsets.UTF_8).split(":");
+        if (parts.length != 2) return null;
+        parts[0] = parts[0].trim();
+        parts[1] = parts[1].trim();
+        return parts;
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path.getFileName() + " is too large to map");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package phantomchat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Credentials live in a snapshot file (username:hash per line, the original users.txt
+// format) plus append-only log segments named <snapshot>.<generation>.log. Registrations
+// are appended and fsynced in batches; compaction folds the logs into a new snapshot.
+// Snapshot users are found through the memory-mapped UserIndex; only users registered
+// since the last compaction are kept on the heap.
+class UserStore {
+    private static final int COMPACTION_THRESHOLD = 10_000;
+    private static final long COMPACTION_INTERVAL_SECONDS = 300;
+
+    private final Path snapshotPath;
+    private final ConcurrentHashMap<String, String> recent = new ConcurrentHashMap<>();
+    // The cluster node each recent user was registered on; see registerReplicated.
+    private final ConcurrentHashMap<String, String> origins = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PendingRecord> reserved = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<PendingRecord> commitQueue = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService compactor;
+    private final Object logLock = new Object();
+    private volatile UserIndex index;
+    private FileChannel log;
+    private long generation;
+    private int logRecords;
+    private boolean compacting;
+
+    private static class PendingRecord {
+        final String username;
+        final String passwordHash;
+        final String nodeId;
+        final CompletableFuture<Boolean> committed = new CompletableFuture<>();
+
+        PendingRecord(String username, String passwordHash, String nodeId) {
+            this.username = username;
+            this.passwordHash = passwordHash;
+            this.nodeId = nodeId;
+        }
+    }
+
+    private UserStore(Path snapshotPath) {
+        this.snapshotPath = snapshotPath.toAbsolutePath();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("user-store-compactor").daemon().factory());
+    }
+
+    static UserStore open(String snapshotFile) throws IOException {
+        UserStore store = new UserStore(Paths.get(snapshotFile));
+        store.recover();
+        Thread.ofPlatform().name("user-store-committer").daemon().start(store::commitLoop);
+        store.compactor.scheduleWithFixedDelay(store::compactIfNeeded,
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return store;
+    }
+
+    String getPasswordHash(String username) {
+        long start = System.nanoTime();
+        String passwordHash = recent.get(username);
+        if (passwordHash == null) {
+            passwordHash = index.lookup(username);
+        }
+        ServerMetrics.Timer.USER_LOOKUP.recordSince(start);
+        return passwordHash;
+    }
+
+    boolean exists(String username) {
+        return reserved.containsKey(username) || getPasswordHash(username) != null;
+    }
+
+    // The cluster node that registered a user since the last compaction, or null.
+    String registeredOn(String username) {
+        return origins.get(username);
+    }
+
+    int size() {
+        return index.size() + recent.size();
+    }
+
+    // Blocks until the record is durable. Returns false if the name is taken; throws if the write failed.
+    // nodeId is the cluster node the user registered on.
+    boolean register(String username, String passwordHash, String nodeId) throws IOException {
+        PendingRecord record = new PendingRecord(username, passwordHash, nodeId);
+        // Reserve first: the committer publishes to recent before releasing a reservation.
+        if (reserved.putIfAbsent(username, record) != null) {
+            return false;
+        }
+        if (getPasswordHash(username) != null) {
+            reserved.remove(username);
+            return false;
+        }
+        return commit(record);
+    }
+
+    // Stores a user another node registered. Two nodes can register the same name at once, and
+    // each then receives the other's record; both keep the one registered on the node whose id
+    // sorts first, as they do for a duplicate login. A record whose node is not known, because it
+    // was registered before this process started, was there first and wins. Returns true if a
+    // different record was replaced, meaning its user has lost the name.
+    boolean registerReplicated(String username, String passwordHash, String nodeId) throws IOException {
+        PendingRecord record = new PendingRecord(username, passwordHash, nodeId);
+        PendingRecord pending;
+        // A registration of the same name still being written here has to be compared against.
+        while ((pending = reserved.putIfAbsent(username, record)) != null) {
+            await(pending);
+        }
+        String current = getPasswordHash(username);
+        if (current != null) {
+            String currentNodeId = origins.get(username);
+            if (current.equals(passwordHash) || currentNodeId == null || currentNodeId.compareTo(nodeId) <= 0) {
+                reserved.remove(username);
+                return false;
+            }
+        }
+        return commit(record) && current != null;
+    }
+
+    // Takes the reservation already held for record.
+    private boolean commit(PendingRecord record) throws IOException {
+        long start = System.nanoTime();
+        commitQueue.add(record);
+        try {
+            boolean committed = record.committed.get();
+            ServerMetrics.Timer.USER_REGISTER.recordSince(start);
+            return committed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving user data");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Waits for another registration's write; whether it succeeded shows in the store afterwards.
+    private static void await(PendingRecord record) throws IOException {
+        try {
+            record.committed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving user data");
+        } catch (ExecutionException e) {
+            // Its reservation has been released, so ours can be taken.
+        }
+    }
+
+    // Group commit: every record queued while the previous fsync ran shares the next one.
+    private void commitLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(commitQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            commitQueue.drainTo(batch);
+
+            StringBuilder records = new StringBuilder();
+            for (PendingRecord record : batch) {
+                appendRecord(records, record.username, record.passwordHash);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+
+            boolean compact;
+            synchronized (logLock) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        log.write(buffer);
+                    }
+                    long syncStart = System.nanoTime();
+                    log.force(false);
+                    ServerMetrics.Timer.USER_SYNC.recordSince(syncStart);
+                    for (PendingRecord record : batch) {
+                        recent.put(record.username, record.passwordHash);
+                        origins.put(record.username, record.nodeId);
+                        reserved.remove(record.username);
+                        record.committed.complete(true);
+                    }
+                    logRecords += batch.size();
+                } catch (IOException e) {
+                    System.err.println("Error saving user data: " + e.getMessage());
+                    for (PendingRecord record : batch) {
+                        reserved.remove(record.username);
+                        record.committed.completeExceptionally(e);
+                    }
+                }
+                compact = logRecords >= COMPACTION_THRESHOLD && !compacting;
+                if (compact) compacting = true;
+            }
+            batch.clear();
+
+            if (compact) {
+                compactor.execute(this::compact);
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        synchronized (logLock) {
+            if (logRecords == 0 || compacting) return;
+            compacting = true;
+        }
+        compact();
+    }
+
+    // Switches appends to a fresh segment, writes the old snapshot plus every recent user to
+    // a new snapshot, re-indexes it, then deletes the segments it covers. A crash at any step
+    // leaves files that recover() can replay; records present in both the snapshot and a log
+    // are simply applied twice.
+    private void compact() {
+        long sealedGeneration;
+        try {
+            synchronized (logLock) {
+                sealedGeneration = generation;
+                FileChannel next = openLog(generation + 1);
+                log.close();
+                log = next;
+                generation++;
+                logRecords = 0;
+            }
+
+            Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            Files.copy(snapshotPath, temp, StandardCopyOption.REPLACE_EXISTING);
+            List<Map.Entry<String, String>> compacted = new ArrayList<>();
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+                if (endsWithoutNewline(temp)) writer.newLine();
+                for (Map.Entry<String, String> entry : recent.entrySet()) {
+                    compacted.add(Map.entry(entry.getKey(), entry.getValue()));
+                    // A replaced record is written again; the later line wins in the index.
+                    if (entry.getValue().equals(index.lookup(entry.getKey()))) continue;
+                    writer.write(entry.getKey() + ":" + entry.getValue());
+                    writer.newLine();
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // Publish the new index before dropping entries from recent so lookups always find them.
+            index = UserIndex.build(snapshotPath);
+            for (Map.Entry<String, String> entry : compacted) {
+                if (recent.remove(entry.getKey(), entry.getValue())) {
+                    origins.remove(entry.getKey());
+                }
+            }
+
+            for (Map.Entry<Long, Path> segment : listLogs().entrySet()) {
+                if (segment.getKey() <= sealedGeneration) {
+                    Files.deleteIfExists(segment.getValue());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error compacting user data: " + e.getMessage());
+        } finally {
+            synchronized (logLock) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            Files.createFile(snapshotPath);
+        }
+        Files.deleteIfExists(snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp"));
+        index = UserIndex.open(snapshotPath);
+
+        TreeMap<Long, Path> logs = listLogs();
+        for (Map.Entry<Long, Path> segment : logs.entrySet()) {
+            replay(segment.getValue());
+            generation = segment.getKey();
+        }
+        log = openLog(generation);
+        logRecords = logs.isEmpty() ? 0 : (int) Math.min(Integer.MAX_VALUE, countRecords(logs));
+    }
+
+    // Applies every intact record and truncates a torn tail left by a crash mid-append.
+    private void replay(Path segment) throws IOException {
+        byte[] data = Files.readAllBytes(segment);
+        int start = 0;
+        int validEnd = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') continue;
+            String[] parts = new String(data, start, i - start, StandardCharsets.UTF_8).split(":");
+            if (parts.length != 3 || !parts[2].equals(checksum(parts[0], parts[1]))) break;
+            if (!parts[1].equals(index.lookup(parts[0]))) {
+                recent.put(parts[0], parts[1]);
+            }
+            start = i + 1;
+            validEnd = start;
+        }
+        if (validEnd < data.length) {
+            System.err.println("Discarding " + (data.length - validEnd) + " damaged bytes from " + segment.getFileName());
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+                channel.force(true);
+            }
+        }
+    }
+
+    private static boolean endsWithoutNewline(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() == 0) return false;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private long countRecords(TreeMap<Long, Path> logs) throws IOException {
+        long count = 0;
+        for (Path segment : logs.values()) {
+            for (byte b : Files.readAllBytes(segment)) {
+                if (b == '\n') count++;
+            }
+        }
+        return count;
+    }
+
+    private TreeMap<Long, Path> listLogs() throws IOException {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        String prefix = snapshotPath.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshotPath.getParent(), prefix + "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    logs.put(Long.parseLong(name.substring(prefix.length(), name.length() - ".log".length())), file);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return logs;
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        Path path = snapshotPath.resolveSibling(snapshotPath.getFileName() + "." + logGeneration + ".log");
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void appendRecord(StringBuilder records, String username, String passwordHash) {
+        records.append(username).append(':').append(passwordHash).append(':')
+                .append(checksum(username, passwordHash)).append('\n');
+    }
+
+    private static String checksum(String username, String passwordHash) {
+        CRC32 crc = new CRC32();
+        crc.update((username + ":" + passwordHash).getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+}
@@ -0,0 +1,31 @@
+package phantomchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Encoders are called under the owning connection's lock; decode only from its reader.
+interface WireProtocol {
+    ByteBuffer encodeLine(String line);
+
+    ByteBuffer encodeMessage(String channel, String message);
+
+    // Several messages for one channel in a single buffer, e.g. for history replay.
+    ByteBuffer encodeMessages(String channel, List<String> messages);
+
+    // Queues the same bytes as encodeMessage, sharing whatever the message has already had
+    // encoded with its other recipients. Returns false if out had no room; see OutboundQueue.offer.
+    boolean encodeShared(SharedMessage message, OutboundQueue out, boolean droppable);
+
+    // Sequence numbers count messages the way the client sees them: line pairs for text,
+    // frames for binary. This is the number of the last one encoded.
+    long lastSequence();
+
+    // How many sequence numbers encodeMessage would take for message.
+    int sequenceLength(String message);
+
+    // Numbers the next message sequence + 1, e.g. to carry on from a resumed session.
+    void continueAfter(long sequence);
+
+    void decode(ByteBuffer buffer, InboundListener listener) throws IOException;
+}
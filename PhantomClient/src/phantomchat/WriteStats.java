@@ -0,0 +1,37 @@
+package phantomchat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+class WriteStats {
+    private static final LongAdder writes = new LongAdder();
+    private static final LongAdder messages = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+
+    static void recordWrite(int messageCount, long byteCount) {
+        writes.increment();
+        messages.add(messageCount);
+        bytes.add(byteCount);
+    }
+
+    static long getWrites() {
+        return writes.sum();
+    }
+
+    static long getMessages() {
+        return messages.sum();
+    }
+
+    static long getBytes() {
+        return bytes.sum();
+    }
+
+    static double averageBatchSize() {
+        long writeCount = writes.sum();
+        return writeCount == 0 ? 0 : (double) messages.sum() / writeCount;
+    }
+
+    static String summary() {
+        return String.format("%d writes, %d messages, %d bytes, %.2f messages/write",
+                getWrites(), getMessages(), getBytes(), averageBatchSize());
+    }
+}
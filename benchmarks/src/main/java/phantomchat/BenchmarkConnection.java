@@ -0,0 +1,56 @@
+package phantomchat;
+
+import java.nio.ByteBuffer;
+
+// A connection with no socket: the drain path empties the outbound queue straight away,
+// so benchmarks measure encoding and queueing without any syscalls.
+class BenchmarkConnection extends Connection {
+    private final ByteBuffer[] batch = new ByteBuffer[64];
+    long bytesWritten;
+
+    BenchmarkConnection() {
+        super(new OutboundQueue(1024, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST), 6);
+    }
+
+    // Turns on deflate the same way a client handshake does; each drain is one flushed batch.
+    BenchmarkConnection compressed() {
+        try {
+            decode(ByteBuffer.wrap(Compression.MAGIC), null);
+        } catch (java.io.IOException e) {
+            throw new IllegalStateException(e);
+        }
+        scheduleDrain();
+        bytesWritten = 0;
+        return this;
+    }
+
+    // Switches to the binary protocol the same way a client handshake does.
+    BenchmarkConnection binary() {
+        try {
+            decode(ByteBuffer.wrap(BinaryProtocol.MAGIC), null);
+        } catch (java.io.IOException e) {
+            throw new IllegalStateException(e);
+        }
+        outbound.clear();
+        return this;
+    }
+
+    @Override
+    protected void scheduleDrain() {
+        int count;
+        while ((count = compress(batch, outbound.drainTo(batch))) > 0) {
+            for (int i = 0; i < count; i++) {
+                bytesWritten += batch[i].remaining();
+                batch[i] = null;
+            }
+        }
+    }
+
+    @Override
+    void close() {
+    }
+
+    @Override
+    void abort() {
+    }
+}
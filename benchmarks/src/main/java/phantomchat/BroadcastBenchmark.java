@@ -0,0 +1,50 @@
+package phantomchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// One chat message fanned out to every member of a channel.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String CHANNEL = "#bench";
+
+    @Param({"10", "100", "1000"})
+    int recipients;
+
+    @Param({"text", "binary", "text-deflate"})
+    String protocol;
+
+    private ChannelRegistry registry;
+    private String message;
+
+    @Setup
+    public void setUp() {
+        registry = new ChannelRegistry();
+        for (int i = 0; i < recipients; i++) {
+            BenchmarkConnection connection = new BenchmarkConnection();
+            switch (protocol) {
+                case "binary":
+                    connection.binary();
+                    break;
+                case "text-deflate":
+                    connection.compressed();
+                    break;
+                default:
+                    break;
+            }
+            registry.join(CHANNEL, connection);
+        }
+        message = "user42: a typical chat line of moderate length, somewhere around eighty bytes";
+    }
+
+    @Benchmark
+    public void broadcast() {
+        ChatServer.broadcast(registry, CHANNEL, message);
+    }
+}
@@ -0,0 +1,88 @@
+package phantomchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import java.util.concurrent.TimeUnit;
+
+// Cost of showing one more message in the client's chat view when the channel already holds
+// `history` messages. legacySetText is the original path: append to an unbounded StringBuilder
+// and replace the whole document (the history is held constant between calls). boundedAppend
+// is the text area path that followed it: an incremental append trimmed to 2000 lines.
+// messageList is the current path: a paged ChannelHistory shown in a MessageList, laid out in a
+// scroll pane the size of the client's window and kept pinned to the bottom.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ChatRenderBenchmark {
+    private static final String MESSAGE = "user42: a typical chat line of moderate length, somewhere around eighty bytes";
+    private static final int BOUNDED_LINES = 2000;
+
+    @Param({"100", "1000", "10000"})
+    int history;
+
+    private JTextArea legacyArea;
+    private JTextArea area;
+    private StringBuilder messages;
+    private int historyLength;
+    private ChannelHistory channel;
+    private MessageList list;
+    private long sequence;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        legacyArea = new JTextArea();
+        area = new JTextArea();
+        messages = new StringBuilder();
+        channel = new ChannelHistory();
+        for (int i = 0; i < history; i++) {
+            messages.append(MESSAGE).append("\n");
+            channel.add(++sequence, MESSAGE);
+        }
+        historyLength = messages.length();
+        legacyArea.setText(messages.toString());
+        int from = Math.max(0, history - BOUNDED_LINES);
+        area.setText(MESSAGE.concat("\n").repeat(history - from));
+        list = new MessageList();
+        list.setModel(channel);
+        JScrollPane pane = new JScrollPane(list);
+        // A lightweight peer, so validate() lays the pane out as it would in a window.
+        pane.addNotify();
+        pane.setSize(600, 400);
+        pane.validate();
+        list.scrollToBottom();
+    }
+
+    @Benchmark
+    public JTextArea legacySetText() {
+        messages.append(MESSAGE).append("\n");
+        legacyArea.setText(messages.toString());
+        messages.setLength(historyLength);
+        return legacyArea;
+    }
+
+    @Benchmark
+    public JTextArea boundedAppend() {
+        area.append(MESSAGE + "\n");
+        int excess = area.getLineCount() - 1 - BOUNDED_LINES;
+        if (excess > 0) {
+            try {
+                area.replaceRange("", 0, area.getLineStartOffset(excess));
+            } catch (javax.swing.text.BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        area.setCaretPosition(area.getDocument().getLength());
+        return area;
+    }
+
+    @Benchmark
+    public MessageList messageList() {
+        list.keepPosition(() -> channel.add(++sequence, MESSAGE));
+        return list;
+    }
+}
@@ -0,0 +1,59 @@
+package phantomchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Cost of answering /users: rebuilding the full list after a change, serving the cached
+// list, and computing the diff a client that saw the previous version gets instead.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OnlineUsersBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int users;
+
+    private final Set<String> online = ConcurrentHashMap.newKeySet();
+    private Presence presence;
+
+    @Setup
+    public void setUp() {
+        presence = new Presence(online::contains);
+        for (int i = 0; i < users; i++) {
+            String user = "user_" + i;
+            online.add(user);
+            presence.update(user);
+        }
+    }
+
+    // One user leaves or rejoins, so every call is a fresh change.
+    private long toggle() {
+        long before = presence.version();
+        if (!online.remove("user_0")) online.add("user_0");
+        presence.update("user_0");
+        return before;
+    }
+
+    @Benchmark
+    public String rebuiltSnapshot() {
+        toggle();
+        return presence.snapshot().line;
+    }
+
+    @Benchmark
+    public String cachedSnapshot() {
+        return presence.snapshot().line;
+    }
+
+    @Benchmark
+    public List<String> diffSinceLastVersion() {
+        long before = toggle();
+        return presence.changesBetween(before, presence.version());
+    }
+}
@@ -0,0 +1,21 @@
+package phantomchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordHashBenchmark {
+    @Param({"pass1", "a-considerably-longer-passphrase-of-64-characters-for-comparison"})
+    String password;
+
+    @Benchmark
+    public String hashPassword() {
+        return ChatServer.hashPassword(password);
+    }
+}
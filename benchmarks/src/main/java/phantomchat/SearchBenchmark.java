@@ -0,0 +1,70 @@
+package phantomchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Answering /search against a channel's journal. The messages are written through
+// MessageJournal, so the index is built the way a running server builds it: in memory, then
+// flushed and merged into segments in the background.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    private static final String CHANNEL = "#bench";
+
+    @Param({"100000", "1000000"})
+    int messages;
+
+    private Path directory;
+    private MessageJournal journal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("search-bench");
+        journal = new MessageJournal(directory, 64 * 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int i = 0; i < messages; i++) {
+            // "common" is in every message, "topicN" in one percent, "serialN" in exactly one.
+            journal.append(CHANNEL, "user_" + (i % 500) + ": common words about topic" + (i % 100)
+                    + " and serial" + i);
+        }
+        // Lets the background thread finish writing and merging segments.
+        Thread.sleep(2000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<MessageJournal.Entry> rareTerm() throws IOException {
+        return journal.search(CHANNEL, "serial" + (messages / 3), 20);
+    }
+
+    @Benchmark
+    public List<MessageJournal.Entry> commonTerm() throws IOException {
+        return journal.search(CHANNEL, "common", 20);
+    }
+
+    @Benchmark
+    public List<MessageJournal.Entry> twoTerms() throws IOException {
+        return journal.search(CHANNEL, "topic42 user_42", 20);
+    }
+
+    @Benchmark
+    public List<MessageJournal.Entry> noMatch() throws IOException {
+        return journal.search(CHANNEL, "topic42 user_43", 20);
+    }
+}
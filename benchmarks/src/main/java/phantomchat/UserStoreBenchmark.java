@@ -0,0 +1,82 @@
+package phantomchat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Loading and saving accounts. The flat users.txt load/save of the original server is now
+// UserIndex (build on a cold start, open on a warm one) plus UserStore's durable append.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserStoreBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int accounts;
+
+    private Path directory;
+    private Path snapshot;
+    private UserIndex index;
+    private UserStore store;
+    private int registered;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("userstore-bench");
+        snapshot = directory.resolve("users.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(snapshot, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < accounts; i++) {
+                writer.write("user_" + i + ":" + ChatServer.hashPassword("password" + i) + "\n");
+            }
+        }
+        index = UserIndex.build(snapshot);
+        store = UserStore.open(snapshot.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public UserIndex buildIndex() throws IOException {
+        return UserIndex.build(snapshot);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public UserIndex openIndex() throws IOException {
+        return UserIndex.open(snapshot);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String lookup() {
+        return index.lookup("user_" + ThreadLocalRandom.current().nextInt(accounts));
+    }
+
+    // One fsync per call here; concurrent registrations share fsyncs through group commit.
+    @Benchmark
+    public boolean register() throws IOException {
+        return store.register("new_" + registered++, ChatServer.hashPassword("password"), "node-4670");
+    }
+}